@@ -44,6 +44,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 import javax.annotation.Resource;
 import javax.inject.Inject;
@@ -59,13 +60,15 @@ import org.dcm4che3.conf.core.api.ConfigChangeEvent.CONTEXT;
 import org.dcm4che3.conf.core.api.Configuration;
 import org.dcm4che3.conf.core.api.ConfigurationException;
 import org.dcm4che3.conf.core.api.Path;
+import org.dcm4chee.conf.storage.MultiNodeConfiguration;
+import org.dcm4chee.conf.storage.StreamingConfiguration;
 
 /**
  * Decorator to add support for configuration change notifications to the configuration backend.
  * 
  * @author Alexander Hoermandinger <alexander.hoermandinger@agfa.com>
  */
-public class ConfigNotificationDecorator extends DelegatingConfiguration {
+public class ConfigNotificationDecorator extends DelegatingConfiguration implements MultiNodeConfiguration, StreamingConfiguration {
     public static final String NOTIFICATIONS_ENABLED_PROPERTY = "org.dcm4che.conf.notifications";
     private final Map<Integer,JtaTransactionConfigChangeContainer> transactionMap = new ConcurrentHashMap<>();
 
@@ -88,6 +91,26 @@ public class ConfigNotificationDecorator extends DelegatingConfiguration {
         recordConfigChange(path);
     }
 
+    @Override
+    public Map<Path, Object> getConfigurationNodes(List<Path> paths, Class configurableClass) throws ConfigurationException {
+        return MultiNodeConfiguration.getConfigurationNodes(delegate, paths, configurableClass);
+    }
+
+    @Override
+    public void streamConfigurationRoot(BiConsumer<List<Object>, Map<String, Object>> nodeConsumer) throws ConfigurationException {
+        StreamingConfiguration.streamConfigurationRoot(delegate, nodeConsumer);
+    }
+
+    @Override
+    public void persistNodes(Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException {
+        MultiNodeConfiguration.persistNodes(delegate, configNodes, configurableClass);
+
+        List<String> changedPaths = new ArrayList<>(configNodes.size());
+        for (Path path : configNodes.keySet())
+            changedPaths.add(path.toSimpleEscapedPath());
+        recordConfigChanges(changedPaths);
+    }
+
     @Override
     public void removeNode(Path path) throws ConfigurationException {
         delegate.removeNode(path);
@@ -95,12 +118,33 @@ public class ConfigNotificationDecorator extends DelegatingConfiguration {
     }
 
     private void recordConfigChange(Path path) {
+        recordConfigChanges(Arrays.asList(path.toSimpleEscapedPath()));
+    }
+
+    private void recordConfigChanges(List<String> changedPaths) {
         JtaTransactionConfigChangeContainer container = getEventForActiveTransaction();
         if(container != null) {
-            container.addChangedPath(path.toSimpleEscapedPath());
+            changedPaths.forEach(container::addChangedPath);
         } else {
             if (Boolean.valueOf(System.getProperty(NOTIFICATIONS_ENABLED_PROPERTY, "true")))
-                configNotifService.sendClusterScopedConfigChangeNotification(new ConfigChangeEventImpl(path.toSimpleEscapedPath(), CONTEXT.CONFIG_CHANGE));
+                configNotifService.sendClusterScopedConfigChangeNotification(new ConfigChangeEventImpl(changedPaths, CONTEXT.CONFIG_CHANGE, 0));
+        }
+    }
+
+    /**
+     * Attaches the revision that the ongoing transaction commits to its change event, if it has one
+     */
+    public void recordRevision(long revision) {
+        try {
+            Transaction tx = tmManager.getTransaction();
+            if (tx == null)
+                return;
+
+            JtaTransactionConfigChangeContainer container = transactionMap.get(tx.hashCode());
+            if (container != null)
+                container.setRevision(revision);
+        } catch (SystemException e) {
+            // no revision then
         }
     }
 
@@ -134,6 +178,7 @@ public class ConfigNotificationDecorator extends DelegatingConfiguration {
         private final int transactionId;
         private List<String> changedPaths = new ArrayList<>();
         private CONTEXT context = CONTEXT.CONFIG_CHANGE;
+        private long revision;
         
         private JtaTransactionConfigChangeContainer(int transactionId) {
             this.transactionId = transactionId;
@@ -151,6 +196,10 @@ public class ConfigNotificationDecorator extends DelegatingConfiguration {
         private void setContext(CONTEXT context) {
             this.context = context;
         }
+
+        private void setRevision(long revision) {
+            this.revision = revision;
+        }
         
         @Override
         public void afterCompletion(int status) {
@@ -160,7 +209,7 @@ public class ConfigNotificationDecorator extends DelegatingConfiguration {
             if (status == Status.STATUS_COMMITTED)
                 if (Boolean.valueOf(System.getProperty(NOTIFICATIONS_ENABLED_PROPERTY, "true")))
                     configNotifService.sendClusterScopedConfigChangeNotification(
-                            new ConfigChangeEventImpl(changedPaths, context));
+                            new ConfigChangeEventImpl(changedPaths, context, revision));
         }
 
         @Override
@@ -170,19 +219,17 @@ public class ConfigNotificationDecorator extends DelegatingConfiguration {
 
     }
     
-    private static class ConfigChangeEventImpl implements ConfigChangeEvent {
+    private static class ConfigChangeEventImpl implements RevisionedConfigChangeEvent {
         private static final long serialVersionUID = 4454659631189062807L;
         
         private final List<String> changedPaths;
         private final CONTEXT context;
+        private final long revision;
       
-        private ConfigChangeEventImpl(String path, CONTEXT context) {
-            this(Arrays.asList(path), context);
-        }
-        
-        private ConfigChangeEventImpl(List<String> changedPaths, CONTEXT context) {
+        private ConfigChangeEventImpl(List<String> changedPaths, CONTEXT context, long revision) {
             this.changedPaths = changedPaths;
             this.context = context;
+            this.revision = revision;
         }
 
         @Override
@@ -194,6 +241,11 @@ public class ConfigNotificationDecorator extends DelegatingConfiguration {
         public List<String> getChangedPaths() {
             return changedPaths;
         }
+
+        @Override
+        public long getRevision() {
+            return revision;
+        }
     }
     
     
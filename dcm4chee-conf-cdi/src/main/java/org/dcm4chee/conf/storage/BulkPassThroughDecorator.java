@@ -0,0 +1,133 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.DelegatingConfiguration;
+import org.dcm4che3.conf.core.api.Configuration;
+import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4che3.conf.core.api.Path;
+
+import java.util.*;
+
+/**
+ * Lets bulk operations reach the layers below the filters on top of the decorator chain (defaults, olocking, extension merging),
+ * which only work node by node.
+ * <p>
+ * The filters are still called node by node, but this layer (placed right below them) collects what they pass on: a bulk persist
+ * is buffered and handed to the layers below as one {@link MultiNodeConfiguration#persistNodes}, and for a bulk read the nodes are
+ * fetched with one {@link MultiNodeConfiguration#getConfigurationNodes} before the filters ask for them one by one.
+ * <p>
+ * The paths of a bulk operation do not overlap, and a filter only reads the node it persists (before persisting it), so buffering
+ * the writes does not change what the filters see.
+ */
+class BulkPassThroughDecorator extends DelegatingConfiguration {
+
+    private final ThreadLocal<Map<Path, Map<String, Object>>> pendingNodes = new ThreadLocal<>();
+
+    private final ThreadLocal<Map<List<Object>, Object>> prefetchedNodes = new ThreadLocal<>();
+
+    BulkPassThroughDecorator(Configuration delegate) {
+        super(delegate);
+    }
+
+    /**
+     * @param filters the top of the chain, which must pass the nodes on to this layer
+     */
+    Map<Path, Object> getConfigurationNodes(Configuration filters, List<Path> paths, Class configurableClass) throws ConfigurationException {
+
+        Map<List<Object>, Object> prefetched = new HashMap<>();
+        for (Map.Entry<Path, Object> entry : MultiNodeConfiguration.getConfigurationNodes(delegate, paths, configurableClass).entrySet())
+            prefetched.put(new ArrayList<>(entry.getKey().getPathItems()), entry.getValue());
+
+        prefetchedNodes.set(prefetched);
+        try {
+            Map<Path, Object> nodes = new LinkedHashMap<>();
+            for (Path path : paths)
+                nodes.put(path, filters.getConfigurationNode(path, configurableClass));
+            return nodes;
+        } finally {
+            prefetchedNodes.remove();
+        }
+    }
+
+    /**
+     * @param filters the top of the chain, which must pass the nodes on to this layer
+     */
+    void persistNodes(Configuration filters, Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException {
+
+        Map<Path, Map<String, Object>> pending = new LinkedHashMap<>();
+        pendingNodes.set(pending);
+        try {
+            for (Map.Entry<Path, Map<String, Object>> entry : configNodes.entrySet())
+                filters.persistNode(entry.getKey(), entry.getValue(), configurableClass);
+        } finally {
+            pendingNodes.remove();
+        }
+
+        MultiNodeConfiguration.persistNodes(delegate, pending, configurableClass);
+    }
+
+    /**
+     * @return true while the filters are asked for the nodes of a bulk read of this thread
+     */
+    boolean isPrefetching() {
+        return prefetchedNodes.get() != null;
+    }
+
+    @Override
+    public Object getConfigurationNode(Path path, Class configurableClass) throws ConfigurationException {
+        Map<List<Object>, Object> prefetched = prefetchedNodes.get();
+
+        // each prefetched node is only handed out once, as the caller may modify it
+        if (prefetched != null && prefetched.containsKey(path.getPathItems()))
+            return prefetched.remove(path.getPathItems());
+
+        return delegate.getConfigurationNode(path, configurableClass);
+    }
+
+    @Override
+    public void persistNode(Path path, Map<String, Object> configNode, Class configurableClass) throws ConfigurationException {
+        Map<Path, Map<String, Object>> pending = pendingNodes.get();
+        if (pending != null)
+            pending.put(path, configNode);
+        else
+            delegate.persistNode(path, configNode, configurableClass);
+    }
+}
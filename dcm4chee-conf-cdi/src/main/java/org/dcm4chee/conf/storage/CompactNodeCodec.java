@@ -0,0 +1,93 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+package org.dcm4chee.conf.storage;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact representation of config nodes as cache values: deflated json in a plain byte array.
+ * <p>
+ * A byte array is marshalled for replication without walking an object graph and takes a fraction of the heap of the
+ * equivalent HashMap tree. A plain byte array also does not require the cache container to see any deployment classes.
+ */
+@SuppressWarnings("unchecked")
+final class CompactNodeCodec {
+
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    private CompactNodeCodec() {
+    }
+
+    static byte[] encode(Map<String, Object> node) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+            OM.writeValue(out, node);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot encode configuration node", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Map<String, Object> decode(byte[] bytes) {
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            return OM.readValue(in, Map.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot decode configuration node", e);
+        }
+    }
+
+    /**
+     * @param cacheValue either an encoded node or a node as is (cache values written with the compact format disabled)
+     */
+    static Map<String, Object> toNode(Object cacheValue) {
+        if (cacheValue instanceof byte[])
+            return decode((byte[]) cacheValue);
+        return (Map<String, Object>) cacheValue;
+    }
+}
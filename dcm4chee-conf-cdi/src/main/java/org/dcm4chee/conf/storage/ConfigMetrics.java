@@ -0,0 +1,118 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+
+package org.dcm4chee.conf.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Latency stats of the operations of the layers of the configuration decorator chain (see {@link ConfigurationEJB#METRICS_PROP}).
+ * <p>
+ * The time of an operation of a layer includes the time spent in the layers below it.
+ */
+public class ConfigMetrics implements ConfigMetricsMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ConfigMetrics.class);
+
+    public static final String OBJECT_NAME = "org.dcm4chee.conf:type=ConfigMetrics";
+
+    private final ConcurrentMap<String, LatencyStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * In the order of creation
+     */
+    private final List<String> keys = new CopyOnWriteArrayList<>();
+
+    LatencyStats getStats(String layer, String operation) {
+        return stats.computeIfAbsent(layer + "." + operation, (key) -> {
+            keys.add(key);
+            return new LatencyStats();
+        });
+    }
+
+    @Override
+    public Map<String, Map<String, Double>> getMetrics() {
+        Map<String, Map<String, Double>> metrics = new LinkedHashMap<>();
+        for (String key : new ArrayList<>(keys))
+            metrics.put(key, stats.get(key).toMap());
+        return metrics;
+    }
+
+    @Override
+    public void reset() {
+        stats.values().forEach(LatencyStats::reset);
+    }
+
+    void registerMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(name))
+                mBeanServer.registerMBean(this, name);
+        } catch (Exception e) {
+            log.warn("Unable to register the configuration metrics MBean", e);
+        }
+    }
+
+    void unregisterMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(name))
+                mBeanServer.unregisterMBean(name);
+        } catch (Exception e) {
+            log.warn("Unable to unregister the configuration metrics MBean", e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.api.ConfigurationException;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Defines how the configuration tree is split into separately stored/cached units.
+ * <p>
+ * By default every node at {@link #BASE_LEVEL} (e.g. a device) is one unit. Additionally, map properties of the nodes at
+ * {@link #BASE_LEVEL} can be configured to be split further, i.e. every child of such a property (e.g. every AE of a device)
+ * becomes a unit on its own, at level {@link #SPLIT_LEVEL}. The unit at {@link #BASE_LEVEL} then only contains an empty map
+ * as a placeholder for each of the split properties.
+ * <p>
+ * The rules are configured with {@link #SPLIT_PROPERTIES_PROPERTY} as a comma-separated list of paths where '*' stands
+ * for any node at {@link #BASE_LEVEL}, e.g.
+ * <pre>/dicomConfigurationRoot/dicomDevicesRoot/*&#47;dicomNetworkAE,/dicomConfigurationRoot/dicomDevicesRoot/*&#47;deviceExtensions</pre>
+ * All the cluster nodes must use the same rules. When the rules are changed, the existing data must be re-laid out once
+ * (see {@link #RELAYOUT_ON_BOOTSTRAP_PROPERTY}).
+ */
+public class ConfigNodeSplitPolicy {
+
+    public static final String SPLIT_PROPERTIES_PROPERTY = "org.dcm4che.conf.storage.splitProperties";
+
+    /**
+     * If enabled, the storage re-lays out all the persisted units according to the current rules when the configuration is
+     * (re)loaded from the storage, e.g. on bootstrap
+     */
+    public static final String RELAYOUT_ON_BOOTSTRAP_PROPERTY = "org.dcm4che.conf.storage.relayoutOnBootstrap";
+
+    /**
+     * The level from which on all the nodes are serialized
+     */
+    public static final int BASE_LEVEL = 3;
+
+    /**
+     * The level of the units that the children of split properties are stored as
+     */
+    public static final int SPLIT_LEVEL = BASE_LEVEL + 2;
+
+    /**
+     * Split properties by the path of the parent of the nodes at {@link #BASE_LEVEL}
+     */
+    private final Map<List<Object>, Set<String>> splitProperties = new HashMap<>();
+
+    public static ConfigNodeSplitPolicy fromSystemProperties() {
+        return new ConfigNodeSplitPolicy(System.getProperty(SPLIT_PROPERTIES_PROPERTY));
+    }
+
+    /**
+     * @param rules comma-separated rules, see the class description; null or empty for no splitting beyond {@link #BASE_LEVEL}
+     */
+    public ConfigNodeSplitPolicy(String rules) {
+        if (rules == null)
+            return;
+
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty())
+                continue;
+
+            List<String> items = new ArrayList<>(Arrays.asList(rule.split("/")));
+            if (items.size() > 0 && items.get(0).isEmpty())
+                items.remove(0);
+
+            if (items.size() != BASE_LEVEL + 1 || !"*".equals(items.get(BASE_LEVEL - 1)))
+                throw new ConfigurationException("Invalid rule '" + rule + "' in " + SPLIT_PROPERTIES_PROPERTY
+                        + ", expected format is /<node>/<node>/*/<property>");
+
+            List<Object> parent = new ArrayList<>(items.subList(0, BASE_LEVEL - 1));
+            splitProperties.computeIfAbsent(parent, (k) -> new LinkedHashSet<>()).add(items.get(BASE_LEVEL));
+        }
+    }
+
+    public boolean isEmpty() {
+        return splitProperties.isEmpty();
+    }
+
+    /**
+     * @param pathItems path of a node at or below {@link #BASE_LEVEL}
+     * @return names of the properties that are split out of the unit at {@link #BASE_LEVEL} the path belongs to
+     */
+    public Set<String> getSplitProperties(List<Object> pathItems) {
+        if (splitProperties.isEmpty() || pathItems.size() < BASE_LEVEL)
+            return Collections.emptySet();
+
+        Set<String> props = splitProperties.get(pathItems.subList(0, BASE_LEVEL - 1));
+        return props == null ? Collections.<String>emptySet() : props;
+    }
+
+    /**
+     * @return the level of the unit a node with the given path is stored in, i.e. either {@link #BASE_LEVEL} or {@link #SPLIT_LEVEL}.
+     * A split property itself (see {@link #isSplitProperty(List)}) is above its unit level.
+     */
+    public int getLevel(List<Object> pathItems) {
+        if (pathItems.size() > BASE_LEVEL && getSplitProperties(pathItems).contains(pathItems.get(BASE_LEVEL)))
+            return SPLIT_LEVEL;
+        return BASE_LEVEL;
+    }
+
+    /**
+     * @return true if the path points to a split property of a node at {@link #BASE_LEVEL}, e.g. to all the AEs of a device
+     */
+    public boolean isSplitProperty(List<Object> pathItems) {
+        return pathItems.size() == BASE_LEVEL + 1 && getLevel(pathItems) == SPLIT_LEVEL;
+    }
+
+    /**
+     * Splits a node into units according to the rules. The unit at {@link #BASE_LEVEL} (if any) is always passed first.
+     *
+     * @param pathItems path of a node at {@link #BASE_LEVEL} or of a split property
+     * @param node      the node, it is not modified, but the passed units share its children
+     * @param unitConsumer receives the path and the content of every unit
+     */
+    public void split(List<Object> pathItems, Map<String, Object> node, BiConsumer<List<Object>, Map<String, Object>> unitConsumer) {
+
+        if (isSplitProperty(pathItems)) {
+            splitChildren(pathItems, node, unitConsumer);
+            return;
+        }
+
+        if (pathItems.size() != BASE_LEVEL)
+            throw new IllegalArgumentException("Only nodes at level " + BASE_LEVEL + " or split properties can be split, path: " + pathItems);
+
+        Set<String> props = getSplitProperties(pathItems);
+        if (props.isEmpty()) {
+            unitConsumer.accept(pathItems, node);
+            return;
+        }
+
+        Map<String, Object> baseUnit = new HashMap<>(node);
+        List<Map<String, Object>> splitPropertyNodes = new ArrayList<>();
+        for (String prop : props) {
+            Object propNode = node.get(prop);
+
+            // only maps can be split, everything else just stays in the base unit
+            if (propNode instanceof Map) {
+                baseUnit.put(prop, new HashMap<>());
+                splitPropertyNodes.add((Map<String, Object>) propNode);
+            } else
+                splitPropertyNodes.add(null);
+        }
+
+        unitConsumer.accept(pathItems, baseUnit);
+
+        Iterator<Map<String, Object>> propNodes = splitPropertyNodes.iterator();
+        for (String prop : props) {
+            Map<String, Object> propNode = propNodes.next();
+            if (propNode != null) {
+                List<Object> propPath = new ArrayList<>(pathItems);
+                propPath.add(prop);
+                splitChildren(propPath, propNode, unitConsumer);
+            }
+        }
+    }
+
+    private void splitChildren(List<Object> propPath, Map<String, Object> propNode, BiConsumer<List<Object>, Map<String, Object>> unitConsumer) {
+        for (Map.Entry<String, Object> entry : propNode.entrySet()) {
+
+            // skip if null - such 'nodes' are therefore filtered out
+            if (entry.getValue() == null) continue;
+
+            if (!(entry.getValue() instanceof Map))
+                throw new IllegalArgumentException("Split property " + propPath + " must only contain nodes, but '" + entry.getKey() + "' is " + entry.getValue());
+
+            List<Object> unitPath = new ArrayList<>(propPath);
+            unitPath.add(entry.getKey());
+            unitConsumer.accept(unitPath, (Map<String, Object>) entry.getValue());
+        }
+    }
+}
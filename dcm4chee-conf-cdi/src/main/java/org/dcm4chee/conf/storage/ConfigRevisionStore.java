@@ -0,0 +1,67 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+
+package org.dcm4chee.conf.storage;
+
+/**
+ * A configuration storage that keeps track of the revision of the stored configuration, i.e. a counter that is incremented
+ * with every committed modification.
+ * <p>
+ * The revision is stored in the cache as well, so that a starting node can tell whether the cache of the cluster it joins
+ * is in sync with the storage (see {@link ConfigurationEJB#WARM_JOIN_PROP}).
+ */
+public interface ConfigRevisionStore {
+
+    /**
+     * @return the revision of the stored configuration, or 0 if no modification was tracked yet
+     */
+    long getRevision();
+
+    /**
+     * Increments the revision within the ongoing transaction. Concurrent writers (e.g. the writers of different devices, see
+     * {@link ConfigWriteLockScope}) must get distinct, consecutive revisions, so the storage has to keep the revision locked
+     * until the transaction commits.
+     *
+     * @return the new revision
+     */
+    long incrementRevision();
+}
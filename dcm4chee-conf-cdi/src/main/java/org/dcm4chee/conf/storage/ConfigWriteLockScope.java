@@ -0,0 +1,74 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4chee.util.TransactionSynchronization;
+
+import javax.transaction.Status;
+import java.util.List;
+
+/**
+ * The scope of the write lock of the ongoing configuration transaction.
+ * <p>
+ * By default, every writer acquires the global lock. With per-device locking enabled (see {@link ConfigurationEJB}), a write
+ * transaction that only modifies a single unit (e.g. a device) is restricted to it. Then the storage only takes a shared lock, which
+ * excludes the global writers but not the writers of other units, and the cache only locks the unit.
+ */
+public final class ConfigWriteLockScope {
+
+    private ConfigWriteLockScope() {
+    }
+
+    /**
+     * @return path items of the unit the ongoing transaction is restricted to, or null if it needs the global lock
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Object> get(TransactionSynchronization txSync) {
+        if (txSync.getStatus() == Status.STATUS_NO_TRANSACTION)
+            return null;
+        return (List<Object>) txSync.getSynchronizationRegistry().getResource(ConfigWriteLockScope.class);
+    }
+
+    static void set(TransactionSynchronization txSync, List<Object> unitPathItems) {
+        txSync.getSynchronizationRegistry().putResource(ConfigWriteLockScope.class, unitPathItems);
+    }
+}
@@ -57,20 +57,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.ejb.*;
 import javax.enterprise.inject.Any;
 import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
 import javax.transaction.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * A per-deployment configuration singleton that brings the config framework parts together:
  * <ul>
  * <li> Injects the proper config storage by looking up the system property
  * <li> Sets up infinispan cache, reference index
- * <li> Enforces global "one-writer-at-a-time" locking for modification ops and tx demarcation
+ * <li> Enforces global "one-writer-at-a-time" locking for modification ops and tx demarcation (optionally "one-writer-per-device", see {@link #PER_DEVICE_LOCKING_PROP})
  * <li> Enables hash-based optimistic locking</li>
  * <li> Enables defaults filtering</li>
  * <li> Triggers integrity checks on transaction pre-commit
@@ -89,13 +94,54 @@ import java.util.Map;
 @ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 @Local(ConfigurationEJB.class)
 @TransactionAttribute(TransactionAttributeType.SUPPORTS)
-public class ConfigurationEJB extends DelegatingConfiguration {
+public class ConfigurationEJB extends DelegatingConfiguration implements MultiNodeConfiguration {
 
     public static final Logger log = LoggerFactory.getLogger(ConfigurationEJB.class);
 
     private static final String DISABLE_OLOCK_PROP = "org.dcm4che.conf.olock.disabled";
     private static final String ENABLE_MERGE_CONFIG = "org.dcm4che.conf.merge.enabled";
 
+    /**
+     * If enabled, a modification of a single device (or any other node at the serialization level) outside of a batch only
+     * excludes the concurrent modifications of the same device and the global ones, see {@link ConfigWriteLockScope}.
+     * Only supported with the db storage.
+     */
+    public static final String PER_DEVICE_LOCKING_PROP = "org.dcm4che.conf.lock.perDevice";
+
+    /**
+     * Max number of fully processed (i.e. with defaults applied and olock hashes calculated) nodes kept to serve the
+     * subsequent reads of the same path, 0 disables it
+     */
+    public static final String READ_CACHE_SIZE_PROP = "org.dcm4che.conf.readCache.size";
+
+    /**
+     * Max number of nodes whose olock hashes are kept to be reused as long as the content of the node does not change
+     * (see {@link MemoizingOptimisticLockingConfiguration}), 0 disables it. Not used with extension merging enabled.
+     */
+    public static final String OLOCK_MEMO_SIZE_PROP = "org.dcm4che.conf.olock.memoSize";
+
+    /**
+     * If enabled, concurrent modifications outside of batches are queued and committed together in one transaction
+     */
+    public static final String GROUP_COMMIT_PROP = "org.dcm4che.conf.groupCommit";
+
+    /**
+     * Max number of modifications committed in one transaction in group-commit mode
+     */
+    public static final String GROUP_COMMIT_MAX_SIZE_PROP = "org.dcm4che.conf.groupCommit.maxSize";
+
+    /**
+     * If enabled, a node that joins a cluster whose cache is in sync with the storage (same revision) does not reload the configuration
+     * on bootstrap. Only supported by storages that track the revision (see {@link ConfigRevisionStore}).
+     */
+    public static final String WARM_JOIN_PROP = "org.dcm4che.conf.warmJoin";
+
+    /**
+     * If enabled, the latency of the operations of every layer of the decorator chain is recorded and exposed over JMX,
+     * see {@link ConfigMetrics}
+     */
+    public static final String METRICS_PROP = "org.dcm4che.conf.metrics";
+
     // components
 
     @Inject
@@ -125,6 +171,23 @@ public class ConfigurationEJB extends DelegatingConfiguration {
     @Inject
     ConfigurableExtensionsResolver extensionsProvider;
 
+    private boolean perDeviceLocking;
+
+    private NearCache<ReadKey, Object> readCache;
+
+    private BulkPassThroughDecorator bulkPassThrough;
+
+    private ConfigRevisionStore revisionStore;
+
+    // null if disabled
+    private ConfigMetrics metrics;
+    private LatencyStats integrityCheckStats;
+
+    private final boolean groupCommit = Boolean.getBoolean(GROUP_COMMIT_PROP);
+    private final int groupCommitMaxSize = Integer.parseInt(System.getProperty(GROUP_COMMIT_MAX_SIZE_PROP, "100"));
+
+    private final GroupCommitQueue groupCommitQueue = new GroupCommitQueue(groupCommitMaxSize, (r) -> self.runInNewTx(r));
+
     @PostConstruct
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     public void init() {
@@ -143,43 +206,180 @@ public class ConfigurationEJB extends DelegatingConfiguration {
             throw new IllegalArgumentException("Unable to initialize dcm4che configuration storage '" + storageType + "'", e);
         }
 
+        if (Boolean.getBoolean(PER_DEVICE_LOCKING_PROP)) {
+            if ("db_blobs".equals(storageType))
+                perDeviceLocking = true;
+            else
+                log.warn("Per-device locking is only supported with the 'db_blobs' storage, using global locking");
+        }
+
+        if (storage instanceof ConfigRevisionStore)
+            revisionStore = (ConfigRevisionStore) storage;
+
+        if (Boolean.getBoolean(METRICS_PROP)) {
+            metrics = new ConfigMetrics();
+            metrics.registerMBean();
+        }
+        storage = meter("storage", storage);
+
         // decorate with config notifications
         configNotificationDecorator.setDelegate(storage);
-        storage = configNotificationDecorator;
+        storage = meter("notifications", configNotificationDecorator);
 
         // decorate with cache
         infinispanCachingConfigurationDecorator.setDelegate(storage);
-        storage = infinispanCachingConfigurationDecorator;
+        storage = meter("cache", infinispanCachingConfigurationDecorator);
 
         // decorate with reference indexing/resolution
         indexingDecorator.setDelegate(storage);
-        storage = indexingDecorator;
+        storage = meter("index", indexingDecorator);
+
+        // the filters below only work node by node
+        bulkPassThrough = new BulkPassThroughDecorator(storage);
+        storage = bulkPassThrough;
 
         List<Class> allExtensionClasses = extensionsProvider.resolveExtensionsList();
 
         // ExtensionMergingConfiguration
-        if ((System.getProperty(ENABLE_MERGE_CONFIG) != null) && Boolean.valueOf(System.getProperty(ENABLE_MERGE_CONFIG))) {
-            storage = new ExtensionMergingConfiguration(storage, allExtensionClasses);
+        boolean extensionMerging = (System.getProperty(ENABLE_MERGE_CONFIG) != null) && Boolean.valueOf(System.getProperty(ENABLE_MERGE_CONFIG));
+        if (extensionMerging) {
+            storage = meter("extensionMerging", new ExtensionMergingConfiguration(storage, allExtensionClasses));
         }
 
-        // olocking
+        // olocking, the hashes are only re-calculated for changed nodes unless the merged extensions make the content differ
+        // from the cached one
         if (System.getProperty(DISABLE_OLOCK_PROP) == null) {
-            storage = new HashBasedOptimisticLockingConfiguration(
-                    storage,
-                    allExtensionClasses);
+            int olockMemoSize = Integer.parseInt(System.getProperty(OLOCK_MEMO_SIZE_PROP, "1000"));
+            if (olockMemoSize > 0 && !extensionMerging)
+                storage = meter("olock", new MemoizingOptimisticLockingConfiguration(
+                        storage,
+                        allExtensionClasses,
+                        olockMemoSize,
+                        infinispanCachingConfigurationDecorator,
+                        bulkPassThrough));
+            else
+                storage = meter("olock", new HashBasedOptimisticLockingConfiguration(
+                        storage,
+                        allExtensionClasses));
         }
 
         // defaults filtering
-        storage = new DefaultsAndNullFilterDecorator(storage, allExtensionClasses, CommonDicomConfiguration.createDefaultDicomVitalizer());
+        storage = meter("defaults", new DefaultsAndNullFilterDecorator(storage, allExtensionClasses, CommonDicomConfiguration.createDefaultDicomVitalizer()));
+
+        if (metrics != null)
+            integrityCheckStats = metrics.getStats("ejb", "integrityCheck");
 
 
         delegate = storage;
 
+        int readCacheSize = Integer.parseInt(System.getProperty(READ_CACHE_SIZE_PROP, "1000"));
+        if (readCacheSize > 0) {
+            readCache = new NearCache<>(readCacheSize);
+            infinispanCachingConfigurationDecorator.addLevelKeyChangeListener(this::invalidateReadCache);
+        }
+
         // bootstrap
+        long time = System.currentTimeMillis();
         delegate.lock();
-        delegate.refreshNode(Path.ROOT);
 
-        log.info("dcm4che configuration singleton EJB created");
+        long locked = System.currentTimeMillis();
+        if (isCacheInSyncWithStorage()) {
+            log.info("Configuration cache is in sync with the storage (revision {}), skipping the reload",
+                    infinispanCachingConfigurationDecorator.getCachedRevision());
+        } else {
+            delegate.refreshNode(Path.ROOT);
+
+            if (revisionStore != null)
+                infinispanCachingConfigurationDecorator.setCachedRevision(revisionStore.getRevision());
+        }
+
+        log.info("dcm4che configuration singleton EJB created: acquiring the lock took {} ms, loading the configuration {} ms",
+                locked - time, System.currentTimeMillis() - locked);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (metrics != null)
+            metrics.unregisterMBean();
+    }
+
+    private Configuration meter(String layer, Configuration configuration) {
+        return metrics != null ? new MeteringConfigurationDecorator(configuration, metrics, layer) : configuration;
+    }
+
+    /**
+     * Writers keep the cached revision in sync with the storage (see {@link #beforeCommit()}), so if they match, the cache
+     * can be used as is. Must be called under the global lock.
+     */
+    private boolean isCacheInSyncWithStorage() {
+        if (!Boolean.getBoolean(WARM_JOIN_PROP))
+            return false;
+
+        if (revisionStore == null) {
+            log.warn("Configuration storage does not track revisions, cannot skip the reload on bootstrap");
+            return false;
+        }
+
+        // the rows must be re-laid out first
+        if (Boolean.getBoolean(ConfigNodeSplitPolicy.RELAYOUT_ON_BOOTSTRAP_PROPERTY))
+            return false;
+
+        Long cachedRevision = infinispanCachingConfigurationDecorator.getCachedRevision();
+        return cachedRevision != null && cachedRevision == revisionStore.getRevision();
+    }
+
+    @Override
+    public Object getConfigurationNode(Path path, Class configurableClass) throws ConfigurationException {
+
+        // writers must see their own changes
+        if (readCache == null || isWriterTx())
+            return delegate.getConfigurationNode(path, configurableClass);
+
+        ReadKey key = new ReadKey(new ArrayList<>(path.getPathItems()), configurableClass);
+        Object node = readCache.get(key);
+        if (node == null) {
+            long version = readCache.getVersion();
+            // the node is shared from now on, so every caller gets its own view
+            node = CopyOnWriteNodeView.toShared(delegate.getConfigurationNode(path, configurableClass));
+            readCache.put(key, node, version);
+        }
+
+        return InfinispanCachingConfigurationDecorator.detach(node);
+    }
+
+    /**
+     * @return the revision of the configuration, which is incremented with every committed modification. Allows to find out
+     * whether anything changed with a single comparison.
+     */
+    public long getRevision() {
+        Long revision = infinispanCachingConfigurationDecorator.getCachedRevision();
+        return revision == null ? 0 : revision;
+    }
+
+    /**
+     * @return latency stats by 'layer.operation' (see {@link ConfigMetrics}), or null if the metrics are disabled
+     */
+    public Map<String, Map<String, Double>> getMetrics() {
+        return metrics != null ? metrics.getMetrics() : null;
+    }
+
+    /**
+     * @return content hash of the (stored) node that changes whenever the node changes, or null if the node does not exist
+     */
+    public String getNodeHash(Path path) {
+        return infinispanCachingConfigurationDecorator.getNodeHash(path);
+    }
+
+    /**
+     * Invalidates the read results that contain the changed level entry, i.e. the ones for its subtree and for its parents
+     */
+    private void invalidateReadCache(String levelKey) {
+        List<Object> changedPathItems = Path.fromSimpleEscapedPath(levelKey).getPathItems();
+        readCache.invalidateIf((key) -> isPrefix(key.pathItems, changedPathItems) || isPrefix(changedPathItems, key.pathItems));
+    }
+
+    private static boolean isPrefix(List<Object> prefix, List<Object> pathItems) {
+        return prefix.size() <= pathItems.size() && prefix.equals(pathItems.subList(0, prefix.size()));
     }
 
     @Override
@@ -187,11 +387,82 @@ public class ConfigurationEJB extends DelegatingConfiguration {
 
         Runnable r = () -> delegate.persistNode(path, configNode, configurableClass);
 
+        if (isBatchTx())
+            runInOngoingTx(r);
+        else if (groupCommit)
+            groupCommitQueue.run(r);
+        else
+            self.runInNewTx(r, path);
+
+    }
+
+    /**
+     * The nodes that are not in the read cache are read with one bulk read below the filters (see {@link BulkPassThroughDecorator})
+     */
+    @Override
+    public Map<Path, Object> getConfigurationNodes(List<Path> paths, Class configurableClass) throws ConfigurationException {
+
+        // writers must see their own changes
+        if (readCache == null || isWriterTx())
+            return bulkPassThrough.getConfigurationNodes(delegate, paths, configurableClass);
+
+        Map<Path, Object> nodes = new LinkedHashMap<>();
+        List<Path> missingPaths = new ArrayList<>();
+        for (Path path : paths) {
+            Object node = readCache.get(new ReadKey(new ArrayList<>(path.getPathItems()), configurableClass));
+            nodes.put(path, node);
+            if (node == null)
+                missingPaths.add(path);
+        }
+
+        if (!missingPaths.isEmpty()) {
+            long version = readCache.getVersion();
+            for (Map.Entry<Path, Object> entry : bulkPassThrough.getConfigurationNodes(delegate, missingPaths, configurableClass).entrySet()) {
+                Object node = CopyOnWriteNodeView.toShared(entry.getValue());
+                readCache.put(new ReadKey(new ArrayList<>(entry.getKey().getPathItems()), configurableClass), node, version);
+                nodes.put(entry.getKey(), node);
+            }
+        }
+
+        nodes.replaceAll((path, node) -> InfinispanCachingConfigurationDecorator.detach(node));
+        return nodes;
+    }
+
+    /**
+     * Persists all the nodes in one transaction, i.e. with one lock acquisition, one integrity check and one notification
+     */
+    @Override
+    public void persistNodes(Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException {
+
+        if (configNodes.isEmpty())
+            return;
+
+        Runnable r = () -> bulkPassThrough.persistNodes(delegate, configNodes, configurableClass);
+
         if (isBatchTx())
             runInOngoingTx(r);
         else
-            self.runInNewTx(r);
+            self.runInNewTx(r, getCommonPath(configNodes.keySet()));
+    }
+
+    /**
+     * @return the longest path that contains all the given ones
+     */
+    private static Path getCommonPath(Collection<Path> paths) {
+        List<Object> common = null;
+        for (Path path : paths) {
+            List<Object> pathItems = path.getPathItems();
+            if (common == null) {
+                common = pathItems;
+                continue;
+            }
 
+            int i = 0;
+            while (i < common.size() && i < pathItems.size() && common.get(i).equals(pathItems.get(i)))
+                i++;
+            common = common.subList(0, i);
+        }
+        return new Path(new ArrayList<>(common));
     }
 
     @Override
@@ -201,8 +472,10 @@ public class ConfigurationEJB extends DelegatingConfiguration {
 
         if (isBatchTx())
             runInOngoingTx(r);
+        else if (groupCommit)
+            groupCommitQueue.run(r);
         else
-            self.runInNewTx(r);
+            self.runInNewTx(r, path);
 
     }
 
@@ -214,7 +487,7 @@ public class ConfigurationEJB extends DelegatingConfiguration {
         if (isBatchTx())
             runInOngoingTx(r);
         else
-            self.runInNewTx(r);
+            self.runInNewTx(r, path);
     }
 
     @Override
@@ -266,6 +539,11 @@ public class ConfigurationEJB extends DelegatingConfiguration {
 
     private void beforeCommit() {
 
+        // writers of different devices run concurrently, but each integrity check must see the changes of the others
+        if (ConfigWriteLockScope.get(txSync) != null)
+            infinispanCachingConfigurationDecorator.lockIntegrityCheck();
+
+        long start = System.nanoTime();
         try {
             // perform referential integrity check
             integrityCheck.performCheck(super.getConfigurationRoot());
@@ -275,12 +553,28 @@ public class ConfigurationEJB extends DelegatingConfiguration {
 
         } catch ( ConfigurationException e ){
             throw e;
+        } finally {
+            if (integrityCheckStats != null)
+                integrityCheckStats.record(System.nanoTime() - start);
         }
 
+        // the revision store locks the revision until the commit, the integrity check lock could be released before the DB commits
+        long revision = revisionStore != null ? revisionStore.incrementRevision() : getRevision() + 1;
+        infinispanCachingConfigurationDecorator.setCachedRevision(revision);
+        configNotificationDecorator.recordRevision(revision);
+
         indexingDecorator.beforeCommit();
     }
 
 
+    /**
+     * @return true if this is a transaction that modifies the configuration (see {@link #registerTxHooks()})
+     */
+    private boolean isWriterTx() {
+        return txSync.getStatus() != Status.STATUS_NO_TRANSACTION
+                && txSync.getSynchronizationRegistry().getResource(ConfigurationEJB.class) != null;
+    }
+
     private boolean isBatchTx() {
         return txSync.getStatus() != Status.STATUS_NO_TRANSACTION
                 && txSync.getSynchronizationRegistry().getResource(Batch.class) != null;
@@ -298,6 +592,18 @@ public class ConfigurationEJB extends DelegatingConfiguration {
         r.run();
     }
 
+    /**
+     * Like {@link #runInNewTx(Runnable)}, but with per-device locking enabled, only locks the device (unit) the path belongs to
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void runInNewTx(Runnable r, Path path) {
+        List<Object> pathItems = path.getPathItems();
+        if (perDeviceLocking && pathItems.size() >= ConfigNodeSplitPolicy.BASE_LEVEL)
+            ConfigWriteLockScope.set(txSync, new ArrayList<>(pathItems.subList(0, ConfigNodeSplitPolicy.BASE_LEVEL)));
+
+        runInNewTx(r);
+    }
+
     /**
      * to make the stack trace easier to read
      */
@@ -305,6 +611,27 @@ public class ConfigurationEJB extends DelegatingConfiguration {
         r.run();
     }
 
-}
+    private static class ReadKey {
+        private final List<Object> pathItems;
+        private final Class configurableClass;
 
+        private ReadKey(List<Object> pathItems, Class configurableClass) {
+            this.pathItems = pathItems;
+            this.configurableClass = configurableClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ReadKey)) return false;
+            ReadKey readKey = (ReadKey) o;
+            return pathItems.equals(readKey.pathItems) && Objects.equals(configurableClass, readKey.configurableClass);
+        }
 
+        @Override
+        public int hashCode() {
+            return 31 * pathItems.hashCode() + Objects.hashCode(configurableClass);
+        }
+    }
+
+}
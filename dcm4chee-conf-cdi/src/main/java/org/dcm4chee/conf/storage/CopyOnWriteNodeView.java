@@ -0,0 +1,337 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.Nodes;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Wraps a config node that is shared (e.g. cached) and must not be modified, so that it can be handed out without deep-cloning it first.
+ * <p>
+ * Maps and lists are exposed as views that read through to the shared node. A level of the tree is only copied (shallowly) when it is
+ * either modified or iterated over, and the nested maps/lists are again exposed as views, so the callers only pay for the parts they touch.
+ * Only the modifications mark a view as mutated, a copy made for iterating does not prevent sharing the wrapped node (see {@link #toShared}).
+ */
+@SuppressWarnings("unchecked")
+final class CopyOnWriteNodeView {
+
+    private CopyOnWriteNodeView() {
+    }
+
+    /**
+     * @param node a node that will not be modified as long as the view is in use
+     * @return a copy-on-write view of the node, or the node itself if it's a primitive
+     */
+    static Object of(Object node) {
+        if (node instanceof CowMap || node instanceof CowList)
+            return node;
+        if (node instanceof Map)
+            return new CowMap((Map<String, Object>) node);
+        if (node instanceof List)
+            return new CowList((List<Object>) node);
+        if (node instanceof Collection)
+            return Nodes.deepCloneNode(node);
+        return node;
+    }
+
+    /**
+     * Views are not thread-safe and must not be kept beyond a single caller. To keep a read result (e.g. in a cache) and hand it out
+     * again, it must be turned into a plain shared node first, which is then wrapped by a new view for every caller.
+     *
+     * @param node a read result
+     * @return the node wrapped by the view if the view is unmodified, a deep clone of the node otherwise
+     */
+    static Object toShared(Object node) {
+        if (isUnmodified(node))
+            return node instanceof CowMap ? ((CowMap) node).source : ((CowList) node).source;
+        return Nodes.deepCloneNode(node);
+    }
+
+    private static boolean isUnmodified(Object view) {
+        if (view instanceof CowMap) {
+            CowMap map = (CowMap) view;
+            return !map.mutated && areUnmodified(map.copy != null ? map.copy.values() : map.childViews != null ? map.childViews.values() : null);
+        }
+        if (view instanceof CowList) {
+            CowList list = (CowList) view;
+            return !list.mutated && areUnmodified(list.copy != null ? list.copy : list.childViews != null ? list.childViews.values() : null);
+        }
+        return false;
+    }
+
+    /**
+     * @param children the values of a view, the nested ones are views themselves
+     */
+    private static boolean areUnmodified(Collection<Object> children) {
+        if (children != null)
+            for (Object child : children)
+                if ((child instanceof CowMap || child instanceof CowList) && !isUnmodified(child))
+                    return false;
+        return true;
+    }
+
+    private static class CowMap extends AbstractMap<String, Object> implements Serializable {
+
+        private static final long serialVersionUID = 4217398216102843913L;
+
+        private final Map<String, Object> source;
+
+        /**
+         * Views of the nested nodes that were already handed out, to make sure modifications to them are not lost
+         */
+        private Map<String, Object> childViews;
+
+        private Map<String, Object> copy;
+
+        /**
+         * Whether this level was modified, as opposed to only copied for iterating
+         */
+        private boolean mutated;
+
+        private CowMap(Map<String, Object> source) {
+            this.source = source;
+        }
+
+        private Map<String, Object> materialize() {
+            if (copy == null) {
+                Map<String, Object> m = new HashMap<>(source.size());
+                for (Entry<String, Object> entry : source.entrySet())
+                    m.put(entry.getKey(), of(entry.getValue()));
+                if (childViews != null)
+                    m.putAll(childViews);
+                copy = m;
+                childViews = null;
+            }
+            return copy;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (copy != null)
+                return copy.get(key);
+
+            Object value = source.get(key);
+            if (!(value instanceof Map) && !(value instanceof Collection))
+                return value;
+
+            if (childViews == null)
+                childViews = new HashMap<>();
+
+            Object view = childViews.get(key);
+            if (view == null) {
+                view = of(value);
+                childViews.put((String) key, view);
+            }
+            return view;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return copy != null ? copy.containsKey(key) : source.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return copy != null ? copy.size() : source.size();
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            mutated = true;
+            return materialize().put(key, value);
+        }
+
+        @Override
+        public Object remove(Object key) {
+            mutated = true;
+            return materialize().remove(key);
+        }
+
+        @Override
+        public void clear() {
+            mutated = true;
+            childViews = null;
+            copy = new HashMap<>();
+        }
+
+        /**
+         * Modifications through the entries are tracked as well
+         */
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            final Set<Entry<String, Object>> entries = materialize().entrySet();
+            return new AbstractSet<Entry<String, Object>>() {
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    final Iterator<Entry<String, Object>> iterator = entries.iterator();
+                    return new Iterator<Entry<String, Object>>() {
+
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Object> next() {
+                            final Entry<String, Object> entry = iterator.next();
+                            return new SimpleEntry<String, Object>(entry) {
+
+                                private static final long serialVersionUID = 1L;
+
+                                @Override
+                                public Object setValue(Object value) {
+                                    mutated = true;
+                                    super.setValue(value);
+                                    return entry.setValue(value);
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            mutated = true;
+                            iterator.remove();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return entries.size();
+                }
+            };
+        }
+
+        private Object writeReplace() {
+            return Nodes.deepCloneNode(this);
+        }
+    }
+
+    private static class CowList extends AbstractList<Object> implements Serializable {
+
+        private static final long serialVersionUID = -1623094388210958112L;
+
+        private final List<Object> source;
+
+        /**
+         * Views of the nested nodes that were already handed out (by index), to make sure modifications to them are not lost
+         */
+        private Map<Integer, Object> childViews;
+
+        private List<Object> copy;
+
+        /**
+         * Whether this level was modified, as opposed to only copied for iterating
+         */
+        private boolean mutated;
+
+        private CowList(List<Object> source) {
+            this.source = source;
+        }
+
+        private List<Object> materialize() {
+            if (copy == null) {
+                List<Object> l = new ArrayList<>(source.size());
+                for (Object o : source)
+                    l.add(of(o));
+                if (childViews != null)
+                    for (Map.Entry<Integer, Object> childView : childViews.entrySet())
+                        l.set(childView.getKey(), childView.getValue());
+                copy = l;
+                childViews = null;
+            }
+            return copy;
+        }
+
+        @Override
+        public Object get(int index) {
+            if (copy != null)
+                return copy.get(index);
+
+            Object value = source.get(index);
+            if (!(value instanceof Map) && !(value instanceof Collection))
+                return value;
+
+            if (childViews == null)
+                childViews = new HashMap<>();
+
+            Object view = childViews.get(index);
+            if (view == null) {
+                view = of(value);
+                childViews.put(index, view);
+            }
+            return view;
+        }
+
+        @Override
+        public int size() {
+            return copy != null ? copy.size() : source.size();
+        }
+
+        @Override
+        public Object set(int index, Object element) {
+            mutated = true;
+            return materialize().set(index, element);
+        }
+
+        @Override
+        public void add(int index, Object element) {
+            mutated = true;
+            materialize().add(index, element);
+            modCount++;
+        }
+
+        @Override
+        public Object remove(int index) {
+            mutated = true;
+            Object removed = materialize().remove(index);
+            modCount++;
+            return removed;
+        }
+
+        private Object writeReplace() {
+            return Nodes.deepCloneNode(this);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+
+package org.dcm4chee.conf.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Queue of modifications that are committed in groups. The transaction boundary is supplied by the caller, so that the queue
+ * does not depend on the container.
+ */
+final class GroupCommitQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitQueue.class);
+
+    private final int maxSize;
+    private final Consumer<Runnable> txRunner;
+
+    // guarded by pendingWrites
+    private final List<PendingWrite> pendingWrites = new ArrayList<>();
+    private boolean groupCommitInProgress;
+
+    /**
+     * @param maxSize  max number of modifications committed in one transaction, at least 1
+     * @param txRunner runs the given modifications in a new transaction
+     */
+    GroupCommitQueue(int maxSize, Consumer<Runnable> txRunner) {
+        this.maxSize = Math.max(1, maxSize);
+        this.txRunner = txRunner;
+    }
+
+    /**
+     * Queues the modification and waits until it is committed as part of a group. The first waiting caller that finds no group
+     * being committed becomes the leader and commits all the queued modifications (including the ones of other callers) in one
+     * transaction, so they share the lock acquisition, the integrity check and the notification.
+     * If the group fails, its modifications are retried one by one, so each caller gets its own result.
+     * A group never has more than the max number of modifications, the own one of the leader included.
+     */
+    void run(Runnable r) {
+        PendingWrite write = new PendingWrite(r);
+        boolean interrupted = false;
+
+        synchronized (pendingWrites) {
+            pendingWrites.add(write);
+
+            while (!write.done && groupCommitInProgress) {
+                try {
+                    pendingWrites.wait();
+                } catch (InterruptedException e) {
+                    // the modification might already be in progress, so cannot just give up
+                    interrupted = true;
+                }
+            }
+
+            if (!write.done)
+                groupCommitInProgress = true;
+        }
+
+        if (!write.done) {
+            List<PendingWrite> group;
+            synchronized (pendingWrites) {
+                // our own write could be queued behind a full group, then it takes the last place
+                int size = Math.min(maxSize, pendingWrites.size());
+                if (!pendingWrites.subList(0, size).contains(write))
+                    size--;
+
+                List<PendingWrite> head = pendingWrites.subList(0, size);
+                group = new ArrayList<>(head);
+                head.clear();
+
+                if (!group.contains(write)) {
+                    pendingWrites.remove(write);
+                    group.add(write);
+                }
+            }
+
+            try {
+                commitGroup(group);
+            } finally {
+                synchronized (pendingWrites) {
+                    groupCommitInProgress = false;
+                    pendingWrites.notifyAll();
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        Throwable failure = write.failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new RuntimeException(failure);
+    }
+
+    /**
+     * Completes every write of the group whatever happens, otherwise its caller would wait forever
+     */
+    private void commitGroup(List<PendingWrite> group) {
+        long time = System.currentTimeMillis();
+        try {
+            txRunner.accept(() -> group.forEach((w) -> w.runnable.run()));
+            group.forEach((w) -> w.complete(null));
+        } catch (Throwable e) {
+            if (group.size() == 1) {
+                group.get(0).complete(e);
+                return;
+            }
+
+            log.info("Group commit of {} configuration modifications failed, retrying them one by one", group.size(), e);
+            for (PendingWrite w : group) {
+                try {
+                    txRunner.accept(w.runnable);
+                    w.complete(null);
+                } catch (Throwable e1) {
+                    w.complete(e1);
+                }
+            }
+        }
+        log.debug("Group commit of {} configuration modifications took {} ms", group.size(), System.currentTimeMillis() - time);
+    }
+
+    private static class PendingWrite {
+        private final Runnable runnable;
+        private volatile boolean done;
+        private volatile Throwable failure;
+
+        private PendingWrite(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        private void complete(Throwable failure) {
+            this.failure = failure;
+            this.done = true;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.Nodes;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A lite-XPath expression compiled for evaluation unit by unit, e.g. device by device, instead of against the whole
+ * configuration root. This works for expressions like
+ * <pre>/dicomConfigurationRoot/dicomDevicesRoot/*&#47;dicomNetworkAE/*&#47;dicomAETitle</pre>
+ * where the first {@link ConfigNodeSplitPolicy#BASE_LEVEL} steps are plain names or wildcards and the rest of the expression
+ * only looks into the subtree of the unit.
+ * <p>
+ * The results for each unit are kept (a secondary index per expression) and only re-evaluated for the units that have changed.
+ */
+final class IndexedSearch {
+
+    private static final int level = ConfigNodeSplitPolicy.BASE_LEVEL;
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][\\w.\\-]*");
+
+    private static final Pattern QUOTED = Pattern.compile("'[^']*'|\"[^\"]*\"");
+
+    /**
+     * An absolute location path or an axis/operator that could look outside of the subtree of a unit
+     */
+    private static final Pattern LEAVES_UNIT = Pattern.compile("(?s).*([\\[(=,<>!|\\s]\\s*/|//|\\.\\.|::|\\$).*");
+
+    /**
+     * A positional predicate on the unit step, which only makes sense in the context of all the units
+     */
+    private static final Pattern POSITIONAL = Pattern.compile("(?s)^\\[\\s*\\d.*|.*(position|last)\\s*\\(.*");
+
+    private final String expression;
+
+    /**
+     * Names or '*' for the first {@link #level} steps
+     */
+    private final List<String> unitSteps;
+
+    private final Map<String, List<Object>> resultsByUnit = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every invalidation, see {@link NearCache}
+     */
+    private long version;
+
+    private IndexedSearch(String expression, List<String> unitSteps) {
+        this.expression = expression;
+        this.unitSteps = unitSteps;
+    }
+
+    /**
+     * @return the compiled expression, or null if the expression cannot be evaluated unit by unit
+     */
+    static IndexedSearch compile(String expression) {
+        String expr = expression.trim();
+        if (!expr.startsWith("/") || expr.startsWith("//"))
+            return null;
+
+        // literals must not confuse the checks below
+        String unquoted = QUOTED.matcher(expr).replaceAll("''");
+
+        List<String> steps = new ArrayList<>(level);
+        int pos = 1;
+        for (int i = 0; i < level; i++) {
+            int end = pos;
+            while (end < unquoted.length() && unquoted.charAt(end) != '/' && unquoted.charAt(end) != '[')
+                end++;
+
+            String step = unquoted.substring(pos, end);
+            if (!step.equals("*") && !NAME.matcher(step).matches())
+                return null;
+            steps.add(step);
+
+            // no predicates above the unit level
+            if (i < level - 1) {
+                if (end >= unquoted.length() || unquoted.charAt(end) != '/')
+                    return null;
+                pos = end + 1;
+            } else
+                pos = end;
+        }
+
+        String rest = unquoted.substring(pos);
+        if (LEAVES_UNIT.matcher(rest).matches())
+            return null;
+        if (rest.startsWith("[") && POSITIONAL.matcher(rest).matches())
+            return null;
+
+        return new IndexedSearch(expr, steps);
+    }
+
+    /**
+     * @return the leading steps without wildcards, i.e. the subtree that contains all the matching units
+     */
+    List<Object> getFixedPathItems() {
+        List<Object> items = new ArrayList<>();
+        for (String step : unitSteps) {
+            if (step.equals("*"))
+                break;
+            items.add(step);
+        }
+        return items;
+    }
+
+    boolean matches(List<Object> unitPathItems) {
+        if (unitPathItems.size() != level)
+            return false;
+        for (int i = 0; i < level; i++) {
+            String step = unitSteps.get(i);
+            if (!step.equals("*") && !step.equals(unitPathItems.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the results for the unit, or null if they are not known
+     */
+    List<Object> getResults(String unitKey) {
+        return resultsByUnit.get(unitKey);
+    }
+
+    /**
+     * Keeps the results, unless the index was invalidated since the given version was read
+     */
+    synchronized void putResults(String unitKey, List<Object> results, long readVersion) {
+        if (version == readVersion)
+            resultsByUnit.put(unitKey, results);
+    }
+
+    synchronized void invalidate(String unitKey) {
+        version++;
+        resultsByUnit.remove(unitKey);
+    }
+
+    /**
+     * @param unitNode the node of the unit (shared, not modified)
+     * @return the results of the expression within the unit
+     */
+    List<Object> evaluate(List<Object> unitPathItems, Object unitNode) {
+        Map<String, Object> root = new HashMap<>();
+        Nodes.replaceNode(root, unitNode, unitPathItems);
+
+        List<Object> results = new ArrayList<>();
+        Nodes.search(root, expression).forEachRemaining(results::add);
+        return results;
+    }
+}
@@ -8,34 +8,195 @@ import org.dcm4che3.conf.core.api.Path;
 import org.dcm4che3.conf.core.util.SplittedPath;
 import org.dcm4chee.cache.Cache;
 import org.dcm4chee.cache.CacheByName;
+import org.dcm4chee.util.TransactionSynchronization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
- * To workaround the limitation of infinispan (at least 5.x) we maintain the keyset inside a special entry {@link InfinispanCachingConfigurationDecorator#KEYSET_KEY}
+ * Every level key (see {@link #level}) is stored as a separate cache entry, so adding or removing a key only touches (and replicates) that entry.
+ * <p>
+ * To workaround the limitation of infinispan (at least 5.x) that a removed entry is still returned by 'get' until the transaction commits,
+ * and that the native keyset is not transaction-aware, the keys written/removed within the ongoing transaction are tracked in a
+ * transaction-scoped overlay (see {@link TxCacheChanges}) which is applied on top of what infinispan returns.
+ * <p>
+ * Reads that need the full tree are served from a node-local root snapshot (see {@link RootSnapshot}) that is only rebuilt
+ * after a change to the cache was observed.
+ * <p>
+ * Subtree operations above the level (e.g. 'does any device exist') use a node-local sorted index of the committed level keys
+ * (see {@link #levelKeyIndex}) to only look at the keys in the prefix range of the subtree.
+ * <p>
+ * Single entries are read through a bounded node-local near cache (see {@link NearCache}) which is invalidated by the same listener.
+ * <p>
+ * The listener is only notified once a transaction has completed, i.e. after its locks were released. A writer could therefore
+ * still find the previous value in the near cache or miss a key in the index. Writers (transactions that took the lock or
+ * modified the cache) bypass both and always read from infinispan.
+ * <p>
+ * Reads are snapshot-consistent, i.e. never see only a part of the changes of another transaction (see {@link #readConsistently(Supplier)}).
  */
 @SuppressWarnings("unchecked")
 @ApplicationScoped
-public class InfinispanCachingConfigurationDecorator extends DelegatingConfiguration {
+public class InfinispanCachingConfigurationDecorator extends DelegatingConfiguration implements MultiNodeConfiguration {
 
     private static final Logger log = LoggerFactory.getLogger(DelegatingConfiguration.class);
 
-    private static final int level = 3;
-    private static final String KEYSET_KEY = "#keySet";
+    private static final int level = ConfigNodeSplitPolicy.BASE_LEVEL;
+
+    /**
+     * If enabled, read results are handed out as copy-on-write views of the cached nodes (see {@link CopyOnWriteNodeView})
+     * instead of deep clones
+     */
+    public static final String COPY_ON_WRITE_READS_PROPERTY = "org.dcm4che.conf.cache.copyOnWriteReads";
+
+    private static final boolean copyOnWriteReads = Boolean.getBoolean(COPY_ON_WRITE_READS_PROPERTY);
+
+    /**
+     * Max number of level entries kept in the node-local near cache, 0 disables it
+     */
+    public static final String NEAR_CACHE_SIZE_PROPERTY = "org.dcm4che.conf.cache.nearCacheSize";
+
+    /**
+     * If enabled, the cache values are stored in a compact encoded form (see {@link CompactNodeCodec}) and decoded on read.
+     * Best combined with the near cache, which keeps the decoded nodes.
+     */
+    public static final String COMPACT_VALUES_PROPERTY = "org.dcm4che.conf.cache.compactValues";
+
+    private static final boolean compactValues = Boolean.getBoolean(COMPACT_VALUES_PROPERTY);
+
+    /**
+     * Disables the evaluation of search expressions unit by unit with maintained results (see {@link IndexedSearch})
+     */
+    public static final String INDEXED_SEARCH_DISABLED_PROPERTY = "org.dcm4che.conf.cache.indexedSearch.disabled";
+
+    private static final boolean indexedSearchDisabled = Boolean.getBoolean(INDEXED_SEARCH_DISABLED_PROPERTY);
+
+    /**
+     * Disables the snapshot-consistent reads (see {@link #readConsistently(Supplier)})
+     */
+    public static final String SNAPSHOT_READS_DISABLED_PROPERTY = "org.dcm4che.conf.cache.snapshotReads.disabled";
+
+    private static final boolean snapshotReadsDisabled = Boolean.getBoolean(SNAPSHOT_READS_DISABLED_PROPERTY);
+
+    /**
+     * Max time a reader retries (and waits for the transactions that changed an entry it has read) before giving up
+     */
+    private static final long SNAPSHOT_READ_TIMEOUT_MS = 1000;
+
+    /**
+     * Level keys read by the ongoing consistent read of the thread, see {@link #readConsistently(Supplier)}
+     */
+    private final ThreadLocal<Set<String>> readKeys = new ThreadLocal<>();
+
+    /**
+     * Max number of distinct search expressions that are compiled and indexed
+     */
+    private static final int MAX_INDEXED_SEARCHES = 256;
+
+    /**
+     * Entry used as a holder for the global write lock. Keys starting with '#' are not level keys.
+     */
+    private static final String LOCK_KEY = "#lock";
+
+    /**
+     * Serializes the integrity checks of the writers restricted to a single unit (see {@link ConfigWriteLockScope})
+     */
+    private static final String INTEGRITY_CHECK_LOCK_KEY = "#integrityCheck";
+
+    /**
+     * Revision of the storage the cache is in sync with (see {@link ConfigRevisionStore})
+     */
+    private static final String REVISION_KEY = "#revision";
 
 
     @Inject
     @CacheByName("configuration")
-    private Cache<String, Map<String, Object>> cache;
+    private Cache<String, Object> cache;
+
+    @Inject
+    TransactionSynchronization txSync;
+
+    /**
+     * Incremented whenever a committed change of the cache is observed, either made by this node or by another cluster node
+     */
+    private final AtomicLong cacheVersion = new AtomicLong();
+
+    private final Object rootSnapshotLock = new Object();
+    private volatile RootSnapshot rootSnapshot;
+
+    /**
+     * Committed level keys, kept in sync with the cache by the entry listener
+     */
+    private final NavigableSet<String> levelKeyIndex = new ConcurrentSkipListSet<>();
+
+    private NearCache<String, Map<String, Object>> nearCache;
+
+    private final ConfigNodeSplitPolicy splitPolicy = ConfigNodeSplitPolicy.fromSystemProperties();
+
+    private final MerkleHashes merkleHashes = new MerkleHashes();
+
+    /**
+     * Notified with the key of every committed change of a level entry, made by this or another cluster node
+     */
+    private final List<Consumer<String>> levelKeyChangeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Compiled search expressions, empty if an expression cannot be indexed
+     */
+    private final ConcurrentMap<String, Optional<IndexedSearch>> indexedSearches = new ConcurrentHashMap<>();
 
     public InfinispanCachingConfigurationDecorator() {
     }
 
+    @PostConstruct
+    public void init() {
+        int nearCacheSize = Integer.parseInt(System.getProperty(NEAR_CACHE_SIZE_PROPERTY, "10000"));
+        if (nearCacheSize > 0)
+            nearCache = new NearCache<>(nearCacheSize);
+
+        cache.addEntryListener((key, removed) -> {
+            if (isLevelKey(key)) {
+                if (removed)
+                    levelKeyIndex.remove(key);
+                else
+                    levelKeyIndex.add(key);
+
+                if (nearCache != null)
+                    nearCache.invalidate(key);
+
+                invalidateIndexedSearches(key);
+
+                merkleHashes.invalidate(Path.fromSimpleEscapedPath(key).getPathItems());
+
+                levelKeyChangeListeners.forEach((l) -> l.accept(key));
+            }
+            cacheVersion.incrementAndGet();
+        });
+
+        // start tracking before anything is read
+        if (!snapshotReadsDisabled)
+            cache.getCommitStamp();
+
+        // listener is registered first, so no change can be missed
+        for (String key : cache.keySet())
+            if (isLevelKey(key))
+                levelKeyIndex.add(key);
+    }
+
     public void setDelegate(Configuration delegate) {
         this.delegate = delegate;
     }
@@ -43,27 +204,171 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
     @Override
     public void refreshNode(Path path) throws ConfigurationException {
 
+        List<Object> pathItems = path.getPathItems();
+
+        if (pathItems.isEmpty()) {
+            reloadRoot((key, unit) -> {
+            });
+            return;
+        }
+
         lock();
         super.refreshNode(path);
 
-        // reload fully
-        Map<String, Object> root = delegate.getConfigurationRoot();
-        clearCache();
-        persistTopLayerToCache(root, new ArrayList<>());
+        // reload only the unit(s) that contain the path
+        List<Object> unitPathItems = new ArrayList<>(pathItems.subList(0, Math.min(pathItems.size(), splitPolicy.getLevel(pathItems))));
+        Object node = delegate.getConfigurationNode(Path.fromSimpleEscapedPath(Nodes.toSimpleEscapedPath(unitPathItems)), null);
+
+        if (node instanceof Map)
+            persistNodeToCache(unitPathItems, (Map<String, Object>) Nodes.deepCloneNode(node));
+        else
+            removeNodeFromCache(unitPathItems);
+    }
+
+    /**
+     * Reloads the whole configuration from the backend into the cache.
+     * <p>
+     * The nodes are taken over in the order the backend passes them (see {@link StreamingConfiguration}), i.e. every node is split
+     * into units that are published within the ongoing transaction right away, so the whole tree is never assembled. Only the units
+     * that differ from the current generation are written, and the units that the backend did not pass anymore are removed at the end.
+     * Until the commit, the other readers keep seeing the current generation, and the commit then switches them to the new one at once
+     * (see {@link #readConsistently}). The unchanged units are not touched at all, so they stay in the near caches and keep their
+     * memoized hashes and search results.
+     *
+     * @param unitListener called with the key and the content of every published unit (shared with the cache - must not be modified),
+     *                     and with the key and null for a published unit that a later node of the backend replaced
+     */
+    void reloadRoot(BiConsumer<String, Map<String, Object>> unitListener) {
+
+        lock();
+        super.refreshNode(Path.ROOT);
+
+        long time = System.currentTimeMillis();
+        GenerationPublisher publisher = new GenerationPublisher(unitListener);
+        StreamingConfiguration.streamConfigurationRoot(delegate, publisher::addNode);
+        int removed = publisher.removeUnpublished();
 
+        log.info("Reloaded the configuration cache with {} units ({} written, {} removed) in {} ms",
+                publisher.published.size(), publisher.written.size(), removed, System.currentTimeMillis() - time);
     }
 
+    /**
+     * Publishes the units of a new generation as the nodes come in from the backend. A node replaces what the previous ones
+     * contain at its path, like when they are merged into one tree.
+     */
+    private class GenerationPublisher {
+
+        private final BiConsumer<String, Map<String, Object>> unitListener;
+
+        private final NavigableSet<String> published = new TreeSet<>();
+
+        private final Set<String> written = new HashSet<>();
+
+        private GenerationPublisher(BiConsumer<String, Map<String, Object>> unitListener) {
+            this.unitListener = unitListener;
+        }
+
+        private void addNode(List<Object> pathItems, Map<String, Object> node) {
+            if (node == null)
+                return;
+
+            int unitLevel = splitPolicy.getLevel(pathItems);
+
+            // the units split out below the level are merged into the placeholders of the unit at the level
+            if (unitLevel > level && pathItems.size() > level)
+                publishPlaceholder(pathItems.subList(0, level + 1));
+
+            if (pathItems.size() <= level || splitPolicy.isSplitProperty(pathItems)) {
+
+                unpublishSubtree(pathItems);
+                splitIntoUnits(node, new ArrayList<>(pathItems), this::publish);
+
+            } else if (pathItems.size() == unitLevel) {
+
+                publish(Nodes.toSimpleEscapedPath(pathItems), node);
+
+            } else {
+
+                // stored within a unit
+                String unitKey = Nodes.toSimpleEscapedPath(pathItems.subList(0, unitLevel));
+                Map<String, Object> unit = getPublished(unitKey);
+                unit = unit == null ? new HashMap<>() : (Map<String, Object>) Nodes.deepCloneNode(unit);
+                Nodes.replaceNode(unit, node, pathItems.subList(unitLevel, pathItems.size()));
+                publish(unitKey, unit);
+            }
+        }
+
+        private void publishPlaceholder(List<Object> splitPropertyPathItems) {
+            String levelKey = Nodes.toSimpleEscapedPath(splitPropertyPathItems.subList(0, level));
+            String prop = (String) splitPropertyPathItems.get(level);
+
+            Map<String, Object> levelUnit = getPublished(levelKey);
+            if (levelUnit != null && levelUnit.get(prop) instanceof Map)
+                return;
+
+            levelUnit = levelUnit == null ? new HashMap<>() : new HashMap<>(levelUnit);
+            levelUnit.put(prop, new HashMap<>());
+            publish(levelKey, levelUnit);
+        }
+
+        private Map<String, Object> getPublished(String key) {
+            return published.contains(key) ? readFromCache(key) : null;
+        }
+
+        private void publish(String key, Map<String, Object> unit) {
+            published.add(key);
+            if (!unit.equals(readFromCache(key))) {
+                putIntoCache(key, unit);
+                written.add(key);
+            }
+            unitListener.accept(key, unit);
+        }
+
+        /**
+         * The units that are replaced are not removed from the cache right away, as they are mostly published again
+         */
+        private void unpublishSubtree(List<Object> pathItems) {
+            String key = Nodes.toSimpleEscapedPath(pathItems);
+            String prefix = key.endsWith("/") ? key : key + "/";
+
+            List<String> keys = new ArrayList<>(published.subSet(prefix, true, prefix + Character.MAX_VALUE, false));
+            if (published.contains(key))
+                keys.add(key);
+
+            for (String unitKey : keys) {
+                published.remove(unitKey);
+                unitListener.accept(unitKey, null);
+            }
+        }
+
+        /**
+         * @return the number of removed units
+         */
+        private int removeUnpublished() {
+            int removed = 0;
+            for (String key : new ArrayList<>(getLevelKeys(Path.ROOT)))
+                if (!published.contains(key)) {
+                    removeFromCache(key);
+                    removed++;
+                }
+            return removed;
+        }
+    }
 
     private void persistTopLayerToCache(Map<String, Object> m, List<Object> pathItems) {
+        splitIntoUnits(m, pathItems, this::putIntoCache);
+    }
 
-        if (pathItems.size() == level) {
-            putIntoCache(Nodes.toSimpleEscapedPath(pathItems), m);
+    private void splitIntoUnits(Map<String, Object> m, List<Object> pathItems, BiConsumer<String, Map<String, Object>> unitConsumer) {
+
+        if (pathItems.size() == level || splitPolicy.isSplitProperty(pathItems)) {
+            splitPolicy.split(pathItems, m, (unitPathItems, unit) -> unitConsumer.accept(Nodes.toSimpleEscapedPath(unitPathItems), unit));
         } else if (pathItems.size() < level) {
             m.entrySet().forEach((entry) -> {
                 pathItems.add(entry.getKey());
 
                 try {
-                    persistTopLayerToCache((Map<String, Object>) entry.getValue(), pathItems);
+                    splitIntoUnits((Map<String, Object>) entry.getValue(), pathItems, unitConsumer);
                 } catch (ClassCastException e) {
                     // this should not happen, but after all ignore and let pass through
                     log.error("Unexpected node above serialization level: " + entry.getValue());
@@ -75,15 +380,49 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
 
     }
 
+    /**
+     * The returned root is shared and must not be modified
+     */
     private Map<String, Object> getWrappedRoot() {
 
-        HashMap<String, Object> root = new HashMap<>();
+        // the transaction must see its own changes that are not committed yet
+        if (getTxChanges(false) != null)
+            return buildRoot();
+
+        RootSnapshot snapshot = rootSnapshot;
+        if (snapshot != null && snapshot.version == cacheVersion.get())
+            return snapshot.root;
+
+        synchronized (rootSnapshotLock) {
+
+            // could have been rebuilt by another thread in the meantime
+            long version = cacheVersion.get();
+            snapshot = rootSnapshot;
+            if (snapshot != null && snapshot.version == version)
+                return snapshot.root;
+
+            long time = System.currentTimeMillis();
+
+            // if something changes while building, the version will not match anymore and the snapshot will be rebuilt on next access
+            snapshot = new RootSnapshot(version, buildRoot());
+            rootSnapshot = snapshot;
+
+            log.debug("Rebuilding configuration root snapshot (version {}) took {} ms", version, System.currentTimeMillis() - time);
+            return snapshot.root;
+        }
+    }
 
-        // TODO: we need to switch to some proper API call once we move to a newer infinispan
-        // for now it's not so critical since most conf calls will go directly to certain entries
+    private Map<String, Object> buildRoot() {
 
-        for (String path : getCacheKeySet()) {
-            Nodes.replaceNode(root, cache.get(path), Path.fromSimpleEscapedPath(path).getPathItems());
+        HashMap<String, Object> root = new HashMap<>();
+
+        // the keys are sorted, so a unit always comes before the units split out of it
+        for (String path : getLevelKeys(Path.ROOT)) {
+            Map<String, Object> node = getFromCache(path);
+            if (node != null) {
+                List<Object> pathItems = Path.fromSimpleEscapedPath(path).getPathItems();
+                Nodes.replaceNode(root, copySplitPlaceholders(pathItems, node), pathItems);
+            }
         }
 
         return root;
@@ -92,12 +431,72 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
 
     @Override
     public Map<String, Object> getConfigurationRoot() throws ConfigurationException {
-        return (Map<String, Object>) Nodes.deepCloneNode(getWrappedRoot());
+        return (Map<String, Object>) detach(readConsistently(this::getWrappedRoot));
     }
 
     @Override
     public Object getConfigurationNode(Path path, Class configurableClass) throws ConfigurationException {
-        return Nodes.deepCloneNode(getConfigurationNodeFromCache(path));
+        return detach(readConsistently(() -> getConfigurationNodeFromCache(path)));
+    }
+
+    @Override
+    public Map<Path, Object> getConfigurationNodes(List<Path> paths, Class configurableClass) throws ConfigurationException {
+        Map<Path, Object> nodes = readConsistently(() -> {
+            Map<Path, Object> cachedNodes = new LinkedHashMap<>();
+            for (Path path : paths)
+                cachedNodes.put(path, getConfigurationNodeFromCache(path));
+            return cachedNodes;
+        });
+
+        nodes.replaceAll((path, node) -> detach(node));
+        return nodes;
+    }
+
+    /**
+     * Infinispan does not provide read atomic isolation, so a reader could see only some of the changes of a transaction that is
+     * being applied, e.g. a new metadata entry, but not yet the devices that were changed together with it.
+     * The read is therefore repeated if a transaction was applied in the meantime, or if one of the entries it has read is changed by
+     * a transaction that is still being applied (see {@link Cache#getCommitStamp()}). Only in the latter case the reader waits for
+     * that transaction, readers of other entries are not held up. A transaction that modified the cache itself holds the lock anyway.
+     * A possibly torn result is never returned, if the read does not succeed within the timeout an {@link InconsistentReadException}
+     * is thrown, so that the caller can retry.
+     */
+    private <T> T readConsistently(Supplier<T> read) {
+        if (snapshotReadsDisabled || getTxChanges(false) != null || readKeys.get() != null)
+            return read.get();
+
+        Set<String> keys = new HashSet<>();
+        readKeys.set(keys);
+        try {
+            long deadline = System.currentTimeMillis() + SNAPSHOT_READ_TIMEOUT_MS;
+            for (int attempt = 1; ; attempt++) {
+                keys.clear();
+                long stamp = cache.getCommitStamp();
+
+                T result = read.get();
+
+                if (stamp == cache.getCommitStamp() && !cache.isBeingApplied(keys))
+                    return result;
+
+                if (System.currentTimeMillis() >= deadline) {
+                    log.warn("Unable to read the configuration cache consistently after {} attempts", attempt);
+                    throw new InconsistentReadException("Unable to read the configuration cache consistently after " + attempt
+                            + " attempts, the entries that were read are being changed by other transactions");
+                }
+
+                while (cache.isBeingApplied(keys) && System.currentTimeMillis() < deadline)
+                    LockSupport.parkNanos(100000);
+            }
+        } finally {
+            readKeys.remove();
+        }
+    }
+
+    /**
+     * Makes sure the callers cannot corrupt the cache by modifying the returned node
+     */
+    static Object detach(Object cachedNode) {
+        return copyOnWriteReads ? CopyOnWriteNodeView.of(cachedNode) : Nodes.deepCloneNode(cachedNode);
     }
 
     private Object getConfigurationNodeFromCache(Path path) {
@@ -105,11 +504,16 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
         SplittedPath splittedPath = getSplittedPath(path);
         if (splittedPath==null) return null;
 
+        List<Object> pathItems = path.getPathItems();
+
         // fallback if requested one of top levels
-        if (splittedPath.getOuterPathItems().size() < level) {
-            return Nodes.getNode(getWrappedRoot(), path.getPathItems());
+        if (pathItems.size() < level) {
+            return Nodes.getNode(getWrappedRoot(), pathItems);
         }
 
+        if (isAssembledFromUnits(pathItems))
+            return assembleNode(pathItems);
+
         Map<String, Object> node = getFromCache(Nodes.toSimpleEscapedPath(splittedPath.getOuterPathItems()));
 
         if (splittedPath.getInnerPathitems().size() == 0)
@@ -118,25 +522,116 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
             return Nodes.getNode(node, splittedPath.getInnerPathitems());
     }
 
+    /**
+     * @return true if the node is not contained in a single unit, but has units split out of it (see {@link ConfigNodeSplitPolicy})
+     */
+    private boolean isAssembledFromUnits(List<Object> pathItems) {
+        return splitPolicy.isSplitProperty(pathItems)
+                || (pathItems.size() == level && !splitPolicy.getSplitProperties(pathItems).isEmpty());
+    }
+
+    /**
+     * Assembles a node from its unit at the level and the units split out of it.
+     * Only the maps on the way to the split out units are copied, the returned node shares the rest with the cache.
+     */
+    private Object assembleNode(List<Object> pathItems) {
+        Map<String, Object> levelNode = getFromCache(Nodes.toSimpleEscapedPath(pathItems.subList(0, level)));
+        if (levelNode == null) return null;
+
+        Object node = Nodes.getNode(levelNode, pathItems.subList(level, pathItems.size()));
+        if (!(node instanceof Map)) return node;
+
+        Map<String, Object> assembled = copySplitPlaceholders(pathItems, (Map<String, Object>) node);
+        for (String key : getLevelKeys(pathItems)) {
+            Map<String, Object> unit = getFromCache(key);
+            if (unit != null) {
+                List<Object> unitPathItems = Path.fromSimpleEscapedPath(key).getPathItems();
+                Nodes.replaceNode(assembled, unit, unitPathItems.subList(pathItems.size(), unitPathItems.size()));
+            }
+        }
+        return assembled;
+    }
+
+    /**
+     * The split out units are merged into the placeholders of the unit they were split out of, so the placeholders must be
+     * copied first to keep the cached unit intact
+     */
+    private Map<String, Object> copySplitPlaceholders(List<Object> pathItems, Map<String, Object> node) {
+
+        Set<String> splitProperties;
+        if (pathItems.size() == level)
+            splitProperties = splitPolicy.getSplitProperties(pathItems);
+        else if (splitPolicy.isSplitProperty(pathItems))
+            return new HashMap<>(node);
+        else
+            return node;
+
+        if (splitProperties.isEmpty())
+            return node;
+
+        Map<String, Object> copy = new HashMap<>(node);
+        for (String prop : splitProperties) {
+            Object placeholder = copy.get(prop);
+            if (placeholder instanceof Map)
+                copy.put(prop, new HashMap<>((Map<String, Object>) placeholder));
+        }
+        return copy;
+    }
+
     @Override
     public void persistNode(Path path, Map<String, Object> configNode, Class configurableClass) throws ConfigurationException {
 
-        SplittedPath splittedPath = getSplittedPath(path);
-
-        if (splittedPath == null)
+        if (path.getPathItems() == null)
             throw new IllegalArgumentException("Path '" + path + "' is invalid");
 
         Map<String, Object> clonedNode = (Map<String, Object>) Nodes.deepCloneNode(configNode);
 
+        persistNodeToCache(path.getPathItems(), clonedNode);
+
+        // propagate to backend
+        super.persistNode(path, configNode, configurableClass);
+
+    }
+
+    @Override
+    public void persistNodes(Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException {
+
+        // validate all the paths before touching the cache
+        for (Path path : configNodes.keySet())
+            if (path.getPathItems() == null)
+                throw new IllegalArgumentException("Path '" + path + "' is invalid");
+        MultiNodeConfiguration.checkNotOverlapping(configNodes.keySet());
+
+        for (Map.Entry<Path, Map<String, Object>> entry : configNodes.entrySet())
+            persistNodeToCache(entry.getKey().getPathItems(), (Map<String, Object>) Nodes.deepCloneNode(entry.getValue()));
+
+        // propagate to backend
+        MultiNodeConfiguration.persistNodes(delegate, configNodes, configurableClass);
+    }
+
+    private void persistNodeToCache(List<Object> pathItems, Map<String, Object> clonedNode) {
+
+        SplittedPath splittedPath = new SplittedPath(pathItems, splitPolicy.getLevel(pathItems));
+
         String levelKey = Nodes.toSimpleEscapedPath(splittedPath.getOuterPathItems());
 
         // fallback if requested one of top levels
-        if (splittedPath.getOuterPathItems().size() < level) {
+        if (pathItems.size() < level) {
+
+            removeNodeFromCache(pathItems);
+            persistTopLayerToCache(clonedNode, new ArrayList<>(pathItems));
+
+        } else if (isAssembledFromUnits(pathItems)) {
 
-            removeNodeFromCache(path);
-            persistTopLayerToCache(clonedNode, splittedPath.getOuterPathItems());
+            // the node is replaced together with the units split out of it
+            removeSplitUnitsFromCache(pathItems);
 
-        } else if (splittedPath.getOuterPathItems().size() > level) {
+            if (splitPolicy.isSplitProperty(pathItems))
+                putPlaceholderIntoCache(pathItems);
+
+            persistTopLayerToCache(clonedNode, new ArrayList<>(pathItems));
+
+        } else if (splittedPath.getTotalDepth() > splittedPath.getOuterPathItems().size()) {
 
             Map<String, Object> levelRootNode = (Map<String, Object>) Nodes.deepCloneNode(getFromCache(levelKey));
             Nodes.replaceNode(levelRootNode, clonedNode, splittedPath.getInnerPathitems());
@@ -146,10 +641,6 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
             // this should be the one used mostly
             putIntoCache(levelKey, clonedNode);
         }
-
-        // propagate to backend
-        super.persistNode(path, configNode, configurableClass);
-
     }
 
 
@@ -160,7 +651,7 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
     @Override
     public void removeNode(Path path) throws ConfigurationException {
 
-        removeNodeFromCache(path);
+        removeNodeFromCache(path.getPathItems());
 
         // propagate to storage backend
         super.removeNode(path);
@@ -168,20 +659,23 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
     }
 
 
-    private void removeNodeFromCache(Path path) {
-        SplittedPath splittedPath = getSplittedPath(path);
+    private void removeNodeFromCache(List<Object> pathItems) {
+        SplittedPath splittedPath = new SplittedPath(pathItems, splitPolicy.getLevel(pathItems));
 
-        String outerPath = Nodes.toSimpleEscapedPath(splittedPath.getOuterPathItems());
+        // a split property itself is only a placeholder in its level node
+        if (splitPolicy.isSplitProperty(pathItems)) {
+            removeSplitUnitsFromCache(pathItems);
+            splittedPath = new SplittedPath(pathItems, level);
+        }
 
-        if (splittedPath.getOuterPathItems().size() < level) {
+        String outerPath = Nodes.toSimpleEscapedPath(splittedPath.getOuterPathItems());
 
-            ArrayList<String> toDelete = getCacheKeySet().stream()
-                    .filter(s -> s.startsWith(outerPath))
-                    .collect(Collectors.toCollection(ArrayList::new));
+        if (pathItems.size() < level) {
 
+            List<String> toDelete = new ArrayList<>(getLevelKeys(pathItems));
             toDelete.forEach(this::removeFromCache);
 
-        } else if (splittedPath.getOuterPathItems().size() > level) {
+        } else if (splittedPath.getTotalDepth() > splittedPath.getOuterPathItems().size()) {
 
             Map<String, Object> node = getFromCache(outerPath);
 
@@ -194,35 +688,65 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
 
         } else {
             removeFromCache(outerPath);
+            removeSplitUnitsFromCache(pathItems);
         }
     }
 
+    private void removeSplitUnitsFromCache(List<Object> pathItems) {
+        if (isAssembledFromUnits(pathItems))
+            new ArrayList<>(getLevelKeys(pathItems)).forEach(this::removeFromCache);
+    }
+
+    /**
+     * Makes sure the level node contains the (empty) placeholder for the split property
+     */
+    private void putPlaceholderIntoCache(List<Object> splitPropertyPathItems) {
+        String levelKey = Nodes.toSimpleEscapedPath(splitPropertyPathItems.subList(0, level));
+        Map<String, Object> levelNode = getFromCache(levelKey);
+
+        levelNode = levelNode == null ? new HashMap<>() : new HashMap<>(levelNode);
+        levelNode.put((String) splitPropertyPathItems.get(level), new HashMap<>());
+        putIntoCache(levelKey, levelNode);
+    }
+
+    /**
+     * Splits the path at the level of the unit that contains the node
+     */
     private SplittedPath getSplittedPath(Path path) {
         List<Object> pathItems = path.getPathItems();
         if (pathItems == null) return null;
-        return new SplittedPath(pathItems, level);
+        return new SplittedPath(pathItems, splitPolicy.getLevel(pathItems));
     }
 
     @Override
     public boolean nodeExists(Path path) throws ConfigurationException {
+        return readConsistently(() -> nodeExistsInCache(path));
+    }
+
+    private boolean nodeExistsInCache(Path path) {
 
         SplittedPath splittedPath = getSplittedPath(path);
 
         if (splittedPath == null)
             throw new IllegalArgumentException("Path '" + path + "' is not valid");
 
+        // a split property itself is only a placeholder in its level node
+        if (splitPolicy.isSplitProperty(path.getPathItems()))
+            splittedPath = new SplittedPath(path.getPathItems(), level);
+
         String outerPath = Nodes.toSimpleEscapedPath(splittedPath.getOuterPathItems());
 
-        int size = splittedPath.getOuterPathItems().size();
+        int size = splittedPath.getTotalDepth();
         if (size < level) {
 
-            for (String s : getCacheKeySet()) {
-                if (s.startsWith(outerPath)) {
+            for (String key : getLevelKeys(path)) {
+                // the index could still contain a key that was just removed
+                if (getFromCache(key) != null) {
                     return true;
                 }
             }
             return false;
-        } else if (size > level) {
+        } else if (size > splittedPath.getOuterPathItems().size()) {
             Map<String, Object> levelNode = getFromCache(outerPath);
 
             // if parent node not found - no children as well
@@ -231,23 +755,221 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
             return Nodes.nodeExists(levelNode, splittedPath.getInnerPathitems());
         } else {
 
-            return getCacheKeySet().contains(outerPath);
+            return getFromCache(outerPath) != null;
         }
     }
 
     @Override
     public Iterator search(String liteXPathExpression) throws IllegalArgumentException, ConfigurationException {
-        ArrayList<Object> objects = new ArrayList<>();
-        Nodes.search(getWrappedRoot(), liteXPathExpression).forEachRemaining((e) -> objects.add(Nodes.deepCloneNode(e)));
+        // the indexed results are only maintained for committed changes
+        IndexedSearch indexedSearch = getTxChanges(false) == null ? getIndexedSearch(liteXPathExpression) : null;
+
+        List<Object> results = readConsistently(() -> {
+            if (indexedSearch != null)
+                return searchUnitByUnit(indexedSearch);
+
+            List<Object> found = new ArrayList<>();
+            Nodes.search(getWrappedRoot(), liteXPathExpression).forEachRemaining(found::add);
+            return found;
+        });
+
+        ArrayList<Object> objects = new ArrayList<>(results.size());
+        results.forEach((e) -> objects.add(detach(e)));
         return objects.iterator();
     }
 
+    private IndexedSearch getIndexedSearch(String liteXPathExpression) {
+        if (indexedSearchDisabled)
+            return null;
+
+        Optional<IndexedSearch> indexedSearch = indexedSearches.get(liteXPathExpression);
+        if (indexedSearch == null) {
+            indexedSearch = Optional.ofNullable(IndexedSearch.compile(liteXPathExpression));
+            if (indexedSearches.size() < MAX_INDEXED_SEARCHES)
+                indexedSearches.putIfAbsent(liteXPathExpression, indexedSearch);
+            else
+                return null;
+        }
+        return indexedSearch.orElse(null);
+    }
+
+    private List<Object> searchUnitByUnit(IndexedSearch indexedSearch) {
+        List<Object> results = new ArrayList<>();
+
+        for (String key : getLevelKeys(indexedSearch.getFixedPathItems())) {
+
+            List<Object> unitResults = indexedSearch.getResults(key);
+            if (unitResults == null) {
+                long version = indexedSearch.getVersion();
+
+                Path unitPath = Path.fromSimpleEscapedPath(key);
+                if (indexedSearch.matches(unitPath.getPathItems())) {
+                    Object unitNode = getConfigurationNodeFromCache(unitPath);
+                    if (unitNode == null)
+                        continue;
+                    unitResults = indexedSearch.evaluate(unitPath.getPathItems(), unitNode);
+                } else
+                    // e.g. a split out unit, remember so that the key doesn't need to be looked at again
+                    unitResults = Collections.emptyList();
+
+                indexedSearch.putResults(key, unitResults, version);
+            }
+            results.addAll(unitResults);
+        }
+        return results;
+    }
+
+    private void invalidateIndexedSearches(String levelKey) {
+        if (indexedSearches.isEmpty())
+            return;
+
+        // a change of a split out unit changes the results of the unit it was split out of
+        List<Object> pathItems = Path.fromSimpleEscapedPath(levelKey).getPathItems();
+        String unitKey = pathItems.size() > level ? Nodes.toSimpleEscapedPath(pathItems.subList(0, level)) : levelKey;
+
+        for (Optional<IndexedSearch> indexedSearch : indexedSearches.values())
+            indexedSearch.ifPresent((s) -> {
+                s.invalidate(unitKey);
+                if (!unitKey.equals(levelKey))
+                    s.invalidate(levelKey);
+            });
+    }
+
     @Override
     public void lock() {
         super.lock();
         long time = System.currentTimeMillis();
-        cache.lock(KEYSET_KEY);
-        log.debug("Acquiring cache lock took {}", System.currentTimeMillis() - time);
+
+        // the storage already excludes the global writers and the writers restricted to a unit from each other
+        List<Object> scope = ConfigWriteLockScope.get(txSync);
+        String lockKey = scope == null ? LOCK_KEY : LOCK_KEY + Nodes.toSimpleEscapedPath(scope);
+
+        cache.lock(lockKey);
+        log.debug("Acquiring cache lock {} took {}", lockKey, System.currentTimeMillis() - time);
+
+        // from now on only read from infinispan, see the class description
+        getTxChanges(true);
+    }
+
+    /**
+     * Must be called before the integrity check by the writers restricted to a unit, so that the check of one writer
+     * sees the committed changes of the other ones. The lock is held until the transaction completes.
+     */
+    public void lockIntegrityCheck() {
+        cache.lock(INTEGRITY_CHECK_LOCK_KEY);
+    }
+
+    /**
+     * @return the revision of the storage the cache content corresponds to, or null if the cache was not marked yet
+     */
+    public Long getCachedRevision() {
+        return (Long) cache.get(REVISION_KEY);
+    }
+
+    /**
+     * Marks the cache content as corresponding to the given revision of the storage, within the ongoing transaction
+     */
+    public void setCachedRevision(long revision) {
+        cache.put(REVISION_KEY, revision);
+    }
+
+    /**
+     * Content hash of a node, e.g. to be used as an ETag or to detect changes. The hashes of units and of the subtrees above
+     * them are memoized and only re-calculated after a change (see {@link MerkleHashes}).
+     *
+     * @return the hash, or null if the node does not exist
+     */
+    public String getNodeHash(Path path) {
+        return readConsistently(() -> calculateNodeHash(path));
+    }
+
+    private String calculateNodeHash(Path path) {
+        List<Object> pathItems = path.getPathItems();
+
+        // uncommitted changes are not reflected by the memoized hashes
+        boolean memoize = getTxChanges(false) == null;
+
+        if (pathItems.size() < level || isAssembledFromUnits(pathItems))
+            return getSubtreeHash(pathItems, memoize);
+
+        if (pathItems.size() == splitPolicy.getLevel(pathItems))
+            return getUnitHash(Nodes.toSimpleEscapedPath(pathItems), memoize);
+
+        Object node = getConfigurationNodeFromCache(path);
+        return node == null ? null : MerkleHashes.hash(node);
+    }
+
+    private String getUnitHash(String levelKey, boolean memoize) {
+        String hash = memoize ? merkleHashes.get(levelKey) : null;
+        if (hash == null) {
+            long version = merkleHashes.getVersion();
+            Map<String, Object> node = getFromCache(levelKey);
+            if (node == null)
+                return null;
+
+            hash = MerkleHashes.hash(node);
+            if (memoize)
+                merkleHashes.put(levelKey, hash, version);
+        }
+        return hash;
+    }
+
+    /**
+     * Combines the hashes of the units the subtree consists of
+     */
+    private String getSubtreeHash(List<Object> pathItems, boolean memoize) {
+        String subtreeKey = MerkleHashes.subtreeKey(pathItems);
+        String hash = memoize ? merkleHashes.get(subtreeKey) : null;
+        if (hash == null) {
+            long version = merkleHashes.getVersion();
+
+            Map<String, String> partHashes = new HashMap<>();
+            if (pathItems.size() >= level) {
+                // the placeholders for the split out units are part of the level node
+                Map<String, Object> levelNode = getFromCache(Nodes.toSimpleEscapedPath(pathItems.subList(0, level)));
+                Object node = levelNode == null ? null : Nodes.getNode(levelNode, pathItems.subList(level, pathItems.size()));
+                if (node == null)
+                    return null;
+                partHashes.put("", MerkleHashes.hash(node));
+            }
+
+            for (String key : getLevelKeys(pathItems)) {
+                String unitHash = getUnitHash(key, memoize);
+                if (unitHash != null)
+                    partHashes.put(key, unitHash);
+            }
+
+            if (partHashes.isEmpty())
+                return null;
+
+            hash = MerkleHashes.combine(partHashes);
+            if (memoize)
+                merkleHashes.put(subtreeKey, hash, version);
+        }
+        return hash;
+    }
+
+    /**
+     * @param listener called with the (escaped path) key of every committed change of a level entry, made by this or another cluster node.
+     *                 Must be fast, it is called on the thread that applies the change.
+     */
+    public void addLevelKeyChangeListener(Consumer<String> listener) {
+        levelKeyChangeListeners.add(listener);
+    }
+
+    /**
+     * @return hits, misses and size of the node-local near cache, or null if it is disabled
+     */
+    public Map<String, Long> getNearCacheStatistics() {
+        if (nearCache == null)
+            return null;
+
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", nearCache.getHits());
+        stats.put("misses", nearCache.getMisses());
+        stats.put("size", (long) nearCache.size());
+        stats.put("maxSize", (long) nearCache.getMaxSize());
+        return stats;
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -256,58 +978,125 @@ public class InfinispanCachingConfigurationDecorator extends DelegatingConfigura
     ////////////////////////////////////////////////////////////////////////////
 
 
-    private Map<String, Object> getFromCache(String path) {
-        // only return result of get if the key exists in the keyset - otherwise we can face isolation issues while in transaction
-        // e.g. after calling 'remove' it will still return the 'read committed' existing value before tx commit
+    private Map<String, Object> getFromCache(String key) {
+        Set<String> keys = readKeys.get();
+        if (keys != null)
+            keys.add(key);
 
-        Map<String, Object> keySet = cache.get(KEYSET_KEY);
+        // mask the keys removed in this transaction - otherwise we can face isolation issues while in transaction,
+        // e.g. after calling 'remove' infinispan will still return the 'read committed' existing value before tx commit
+        TxCacheChanges txChanges = getTxChanges(false);
+        if (txChanges != null) {
+            if (txChanges.removed.contains(key))
+                return null;
 
-        if (keySet== null) return null;
+            // the near cache could still hold the value from before the commit of the previous writer
+            return readFromCache(key);
+        }
 
-        if (keySet.containsKey(path))
-            return cache.get(path);
-        else
-            return null;
+        if (nearCache == null)
+            return readFromCache(key);
+
+        Map<String, Object> node = nearCache.get(key);
+        if (node == null) {
+            long nearCacheVersion = nearCache.getVersion();
+            node = readFromCache(key);
+            nearCache.put(key, node, nearCacheVersion);
+        }
+        return node;
     }
 
     private void putIntoCache(String key, Map<String, Object> value) {
-
-        // add key to the keyset entry
-        Map<String, Object> keysMap = cache.get(KEYSET_KEY);
-        if (keysMap == null) {
-            keysMap = new HashMap<>();
-        } else {
-            keysMap = (Map<String, Object>) Nodes.deepCloneNode(keysMap);
+        TxCacheChanges txChanges = getTxChanges(true);
+        if (txChanges != null) {
+            txChanges.removed.remove(key);
+            txChanges.written.add(key);
         }
 
-        keysMap.put(key, true);
-        cache.put(KEYSET_KEY, keysMap);
-
-        cache.put(key, value);
+        cache.put(key, compactValues ? CompactNodeCodec.encode(value) : value);
     }
 
+    private Map<String, Object> readFromCache(String key) {
+        return CompactNodeCodec.toNode(cache.get(key));
+    }
 
+    private Collection<String> getLevelKeys(Path subtreePath) {
+        return getLevelKeys(subtreePath.getPathItems());
+    }
 
-    private Set<String> getCacheKeySet() {
-        Map<String, Object> keyMap = cache.get(KEYSET_KEY);
-        if (keyMap == null)
-            keyMap = Collections.emptyMap();
-        return keyMap.keySet();
+    /**
+     * Level keys in the subtree of a path (excluding the path itself), with the changes of the ongoing transaction applied
+     * on top of the committed ones. Runs in O(log n + k), or in O(n) for a writer, which cannot rely on the index.
+     */
+    private Collection<String> getLevelKeys(List<Object> subtreePathItems) {
+        String prefix = Nodes.toSimpleEscapedPath(subtreePathItems);
+        if (!prefix.endsWith("/"))
+            prefix += "/";
+
+        TxCacheChanges txChanges = getTxChanges(false);
+        if (txChanges == null)
+            return levelKeyIndex.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+
+        Set<String> keys = new TreeSet<>();
+        for (String key : cache.keySet())
+            if (isLevelKey(key) && key.startsWith(prefix))
+                keys.add(key);
+        keys.removeAll(txChanges.removed);
+        for (String key : txChanges.written)
+            if (key.startsWith(prefix))
+                keys.add(key);
+        return keys;
     }
 
     private void removeFromCache(String key) {
-        Map<String, Object> keysMap = cache.get(KEYSET_KEY);
-        if (keysMap != null) {
-            keysMap = (Map<String, Object>) Nodes.deepCloneNode(keysMap);
-            keysMap.remove(key);
-            cache.put(KEYSET_KEY, keysMap);
+        TxCacheChanges txChanges = getTxChanges(true);
+        if (txChanges != null) {
+            txChanges.written.remove(key);
+            txChanges.removed.add(key);
         }
 
         cache.remove(key);
     }
 
-    private void clearCache() {
-        cache.clear();
-        cache.put(KEYSET_KEY, new HashMap<>());
+    private static boolean isLevelKey(String key) {
+        return !key.startsWith("#");
+    }
+
+    /**
+     * @param create whether to create the overlay if the ongoing transaction does not have one yet
+     * @return the overlay for the ongoing transaction, or null if there is none (or no transaction at all)
+     */
+    private TxCacheChanges getTxChanges(boolean create) {
+        if (txSync.getStatus() == Status.STATUS_NO_TRANSACTION)
+            return null;
+
+        TransactionSynchronizationRegistry registry = txSync.getSynchronizationRegistry();
+        TxCacheChanges txChanges = (TxCacheChanges) registry.getResource(InfinispanCachingConfigurationDecorator.class);
+        if (txChanges == null && create) {
+            txChanges = new TxCacheChanges();
+            registry.putResource(InfinispanCachingConfigurationDecorator.class, txChanges);
+        }
+        return txChanges;
+    }
+
+    /**
+     * Level keys written/removed within a transaction
+     */
+    private static class TxCacheChanges {
+        private final Set<String> written = new HashSet<>();
+        private final Set<String> removed = new HashSet<>();
+    }
+
+    /**
+     * Materialized configuration root that corresponds to a certain {@link #cacheVersion}
+     */
+    private static class RootSnapshot {
+        private final long version;
+        private final Map<String, Object> root;
+
+        private RootSnapshot(long version, Map<String, Object> root) {
+            this.version = version;
+            this.root = root;
+        }
     }
-}
\ No newline at end of file
+}
@@ -8,12 +8,16 @@ import org.dcm4che3.conf.core.index.ReferenceIndexingDecorator;
 import org.dcm4chee.cache.Cache;
 import org.dcm4chee.cache.CacheByName;
 import org.dcm4chee.util.TransactionSynchronization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /* IMPORTANT:
 * Infinispan behaves bad when used in sync/replicated mode and does not properly remove entries when 'remove' is called:
@@ -28,8 +32,9 @@ import java.util.List;
 
 @SuppressWarnings("unchecked")
 @ApplicationScoped
-public class InfinispanDicomReferenceIndexingDecorator extends ReferenceIndexingDecorator {
+public class InfinispanDicomReferenceIndexingDecorator extends ReferenceIndexingDecorator implements MultiNodeConfiguration {
 
+    private static final Logger log = LoggerFactory.getLogger(InfinispanDicomReferenceIndexingDecorator.class);
 
     public static final String LOCK_HOLDER = "=LOCK=HOLDER=";
     @Inject
@@ -51,16 +56,100 @@ public class InfinispanDicomReferenceIndexingDecorator extends ReferenceIndexing
     @Override
     public void refreshNode(Path path) throws ConfigurationException {
 
-        Object oldRoot = delegate.getConfigurationNode(Path.ROOT, null);
-        removeOldReferablesFromIndex(oldRoot);
+        Configuration cachingDelegate = MeteringConfigurationDecorator.unwrap(delegate);
+        if (path.getPathItems().isEmpty() && cachingDelegate instanceof InfinispanCachingConfigurationDecorator) {
+            refreshRoot((InfinispanCachingConfigurationDecorator) cachingDelegate);
+            return;
+        }
+
+        // only the referables in the refreshed subtree need to be re-indexed
+        Object oldNode = delegate.getConfigurationNode(path, null);
+        if (oldNode != null)
+            removeOldReferablesFromIndex(oldNode);
 
         delegate.refreshNode(path);
-        Object root = delegate.getConfigurationNode(Path.ROOT, null);
+        Object node = delegate.getConfigurationNode(path, null);
 
         // Don't fail on initializing/refreshing the index - in this case the config already has duplicate UUIDs and we can do nothing about it
-        super.addReferablesToIndex(new ArrayList<>(), root);
+        if (node != null)
+            super.addReferablesToIndex(new ArrayList<>(path.getPathItems()), node);
     }
 
+    @Override
+    public Map<Path, Object> getConfigurationNodes(List<Path> paths, Class configurableClass) throws ConfigurationException {
+        return MultiNodeConfiguration.getConfigurationNodes(delegate, paths, configurableClass);
+    }
+
+    @Override
+    public void persistNodes(Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException {
+
+        Map<Path, Object> oldNodes = MultiNodeConfiguration.getConfigurationNodes(delegate, new ArrayList<>(configNodes.keySet()), null);
+        for (Object oldNode : oldNodes.values())
+            if (oldNode != null)
+                removeOldReferablesFromIndex(oldNode);
+
+        MultiNodeConfiguration.persistNodes(delegate, configNodes, configurableClass);
+
+        for (Map.Entry<Path, Map<String, Object>> entry : configNodes.entrySet())
+            addReferablesToIndex(new ArrayList<>(entry.getKey().getPathItems()), entry.getValue());
+    }
+
+    /**
+     * Rebuilds the index in the same pass as the cache is reloaded, i.e. from the units as they are published, without reading
+     * (and cloning) the whole tree before and after. Like the cache, the new index is built aside and only the entries that differ are written.
+     */
+    private void refreshRoot(InfinispanCachingConfigurationDecorator cachingDecorator) {
+
+        // a unit can be replaced by a later node of the storage, so its referables are kept apart until the end
+        Map<String, Map<String, Path>> unitReferables = new HashMap<>();
+        cachingDecorator.reloadRoot((key, unit) -> {
+            if (unit == null) {
+                unitReferables.remove(key);
+                return;
+            }
+
+            // Don't fail on initializing/refreshing the index - in this case the config already has duplicate UUIDs and we can do nothing about it
+            Map<String, Path> referables = new HashMap<>();
+            new ShadowIndex(referables).addReferables(Path.fromSimpleEscapedPath(key).getPathItems(), unit);
+            unitReferables.put(key, referables);
+        });
+
+        long time = System.currentTimeMillis();
+
+        Map<String, Path> index = new HashMap<>();
+        unitReferables.values().forEach(index::putAll);
+
+        int changed = 0;
+        for (String uuid : new ArrayList<>(uuidIndex.keySet()))
+            if (!LOCK_HOLDER.equals(uuid) && !index.containsKey(uuid)) {
+                removeFromCache(uuid);
+                changed++;
+            }
+
+        for (Map.Entry<String, Path> entry : index.entrySet()) {
+            Path path = uuidIndex.get(entry.getKey());
+            if (path == null || !path.getPathItems().equals(entry.getValue().getPathItems())) {
+                uuidIndex.put(entry.getKey(), entry.getValue());
+                changed++;
+            }
+        }
+
+        log.info("Publishing the rebuilt UUID index ({} changed of {} entries) took {} ms", changed, index.size(), System.currentTimeMillis() - time);
+    }
+
+    /**
+     * Collects the referables into a plain map
+     */
+    private static class ShadowIndex extends ReferenceIndexingDecorator {
+
+        private ShadowIndex(Map<String, Path> index) {
+            super(null, index);
+        }
+
+        private void addReferables(List<Object> pathItems, Map<String, Object> unit) {
+            addReferablesToIndex(new ArrayList<>(pathItems), unit);
+        }
+    }
 
     /**
      * Make sure that we fail a transaction in case of finding duplicate references
@@ -80,7 +169,10 @@ public class InfinispanDicomReferenceIndexingDecorator extends ReferenceIndexing
     @Override
     public void lock() {
         super.lock();
-        uuidIndex.lock(LOCK_HOLDER);
+
+        // writers restricted to a unit only touch the entries of its referables
+        if (ConfigWriteLockScope.get(txSync) == null)
+            uuidIndex.lock(LOCK_HOLDER);
     }
 
     @Override
@@ -0,0 +1,122 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+
+package org.dcm4chee.conf.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with exponential buckets, precise enough to tell in which layer the time is spent
+ */
+final class LatencyStats {
+
+    /**
+     * Bucket i counts the durations below 2^i microseconds, the last one all the longer ones
+     */
+    private static final int BUCKETS = 24;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private volatile long sinceNanos = System.nanoTime();
+
+    LatencyStats() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+
+        long micros = nanos / 1000;
+        int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        buckets[Math.min(bucket, BUCKETS - 1)].increment();
+    }
+
+    void reset() {
+        count.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+        for (LongAdder bucket : buckets)
+            bucket.reset();
+        sinceNanos = System.nanoTime();
+    }
+
+    /**
+     * @return count, throughput (per second since creation/reset), total/mean/max and percentiles in ms. The percentiles are the upper bounds of the buckets they fall into.
+     */
+    Map<String, Double> toMap() {
+        long n = count.sum();
+        long total = totalNanos.sum();
+
+        Map<String, Double> map = new LinkedHashMap<>();
+        map.put("count", (double) n);
+        map.put("perSecond", n / Math.max((System.nanoTime() - sinceNanos) / 1e9, 1e-3));
+        map.put("totalMs", total / 1e6);
+        map.put("meanMs", n == 0 ? 0 : total / 1e6 / n);
+        map.put("maxMs", maxNanos.get() / 1e6);
+        map.put("p50Ms", percentile(0.5, n));
+        map.put("p90Ms", percentile(0.9, n));
+        map.put("p99Ms", percentile(0.99, n));
+        return map;
+    }
+
+    private double percentile(double p, long n) {
+        if (n == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(p * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank)
+                return (1L << i) / 1e3;
+        }
+        return maxNanos.get() / 1e6;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.api.Configuration;
+import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4che3.conf.core.api.Path;
+import org.dcm4che3.conf.core.olock.HashBasedOptimisticLockingConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Optimistic locking layer that only re-calculates the olock hashes of a node once its content changed.
+ * <p>
+ * The olock hashes are derived from the content of the node only, so the node processed by this layer is memoized along with the
+ * content hash of the node it was made from (see {@link InfinispanCachingConfigurationDecorator#getNodeHash(Path)}). These content
+ * hashes are themselves memoized for the units and the subtrees above them, so a read of an unchanged node only costs a hash lookup
+ * and a copy, instead of a type-safe traversal that hashes the whole node. A changed node is detected by its hash, even within a
+ * transaction that changed it.
+ * <p>
+ * The bulk reads are not memoized, as their nodes are read from one snapshot before the hashes could be looked up.
+ */
+class MemoizingOptimisticLockingConfiguration extends HashBasedOptimisticLockingConfiguration {
+
+    private final InfinispanCachingConfigurationDecorator cachingDecorator;
+    private final BulkPassThroughDecorator bulkPassThrough;
+
+    private final NearCache<MemoKey, Memo> memos;
+
+    MemoizingOptimisticLockingConfiguration(Configuration delegate, List<Class> allExtensionClasses, int maxSize,
+                                            InfinispanCachingConfigurationDecorator cachingDecorator,
+                                            BulkPassThroughDecorator bulkPassThrough) {
+        super(delegate, allExtensionClasses);
+        this.cachingDecorator = cachingDecorator;
+        this.bulkPassThrough = bulkPassThrough;
+        this.memos = new NearCache<>(maxSize);
+
+        // the memos of changed nodes would not be hit anymore anyway, but this also stops storing the ones being read
+        cachingDecorator.addLevelKeyChangeListener(this::invalidate);
+    }
+
+    @Override
+    public Object getConfigurationNode(Path path, Class configurableClass) throws ConfigurationException {
+        if (bulkPassThrough.isPrefetching())
+            return super.getConfigurationNode(path, configurableClass);
+
+        long version = memos.getVersion();
+        String hash = cachingDecorator.getNodeHash(path);
+        if (hash == null)
+            return super.getConfigurationNode(path, configurableClass);
+
+        MemoKey key = new MemoKey(new ArrayList<>(path.getPathItems()), configurableClass);
+        Memo memo = memos.get(key);
+        if (memo != null && memo.hash.equals(hash))
+            return InfinispanCachingConfigurationDecorator.detach(memo.node);
+
+        Object node = super.getConfigurationNode(path, configurableClass);
+
+        // only if the node was not changed while it was read
+        if (node != null && hash.equals(cachingDecorator.getNodeHash(path)))
+            memos.put(key, new Memo(hash, CopyOnWriteNodeView.toShared(node)), version);
+
+        return node;
+    }
+
+    private void invalidate(String levelKey) {
+        List<Object> changedPathItems = Path.fromSimpleEscapedPath(levelKey).getPathItems();
+        memos.invalidateIf((key) -> isPrefix(key.pathItems, changedPathItems) || isPrefix(changedPathItems, key.pathItems));
+    }
+
+    private static boolean isPrefix(List<Object> prefix, List<Object> pathItems) {
+        return prefix.size() <= pathItems.size() && prefix.equals(pathItems.subList(0, prefix.size()));
+    }
+
+    private static class Memo {
+        private final String hash;
+        private final Object node;
+
+        private Memo(String hash, Object node) {
+            this.hash = hash;
+            this.node = node;
+        }
+    }
+
+    private static class MemoKey {
+        private final List<Object> pathItems;
+        private final Class configurableClass;
+
+        private MemoKey(List<Object> pathItems, Class configurableClass) {
+            this.pathItems = pathItems;
+            this.configurableClass = configurableClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MemoKey)) return false;
+            MemoKey memoKey = (MemoKey) o;
+            return pathItems.equals(memoKey.pathItems) && Objects.equals(configurableClass, memoKey.configurableClass);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * pathItems.hashCode() + Objects.hashCode(configurableClass);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.Nodes;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Merkle-style content hashes of config nodes, memoized for the cached units and the subtrees above them.
+ * <p>
+ * The hash of a map is calculated from the (sorted) keys and the hashes of the children, so equal content always results
+ * in an equal hash, independently of the map implementation and the key order. When a unit changes, only its own hash and the
+ * hashes of the subtrees that contain it are invalidated and re-calculated on the next access.
+ */
+@SuppressWarnings("unchecked")
+final class MerkleHashes {
+
+    private final ConcurrentMap<String, String> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every invalidation, see {@link NearCache}
+     */
+    private long version;
+
+    static String unitKey(List<Object> unitPathItems) {
+        return Nodes.toSimpleEscapedPath(unitPathItems);
+    }
+
+    /**
+     * Subtree keys must not collide with the keys of units, as a node can be both a unit and contain other units
+     */
+    static String subtreeKey(List<Object> pathItems) {
+        return Nodes.toSimpleEscapedPath(pathItems) + "/";
+    }
+
+    String get(String key) {
+        return hashes.get(key);
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized void put(String key, String hash, long readVersion) {
+        if (version == readVersion)
+            hashes.put(key, hash);
+    }
+
+    /**
+     * Invalidates the hash of the changed unit and of all the subtrees that contain it
+     */
+    synchronized void invalidate(List<Object> unitPathItems) {
+        version++;
+        hashes.remove(unitKey(unitPathItems));
+        for (int i = 0; i <= unitPathItems.size(); i++)
+            hashes.remove(subtreeKey(unitPathItems.subList(0, i)));
+    }
+
+    /**
+     * @return the hash of the node, hex-encoded
+     */
+    static String hash(Object node) {
+        return toHex(digest(node));
+    }
+
+    /**
+     * @param partHashes hashes of the parts of a subtree by their (unique) keys
+     * @return the hash of the subtree, hex-encoded
+     */
+    static String combine(Map<String, String> partHashes) {
+        MessageDigest md = newDigest();
+        md.update((byte) 'T');
+        new TreeMap<>(partHashes).forEach((key, hash) -> {
+            update(md, key);
+            update(md, hash);
+        });
+        return toHex(md.digest());
+    }
+
+    private static byte[] digest(Object node) {
+        MessageDigest md = newDigest();
+
+        if (node instanceof Map) {
+            md.update((byte) 'M');
+            Map<String, Object> map = (Map<String, Object>) node;
+            for (String key : new TreeSet<>(map.keySet())) {
+                update(md, key);
+                md.update(digest(map.get(key)));
+            }
+        } else if (node instanceof Collection) {
+            md.update((byte) 'L');
+            for (Object element : (Collection<Object>) node)
+                md.update(digest(element));
+        } else if (node == null) {
+            md.update((byte) 'N');
+        } else if (node instanceof Byte || node instanceof Short || node instanceof Integer || node instanceof Long || node instanceof BigInteger) {
+            // the same value can come as a different type, e.g. after a json roundtrip
+            md.update((byte) 'I');
+            update(md, node.toString());
+        } else if (node instanceof Number) {
+            md.update((byte) 'F');
+            update(md, Double.toString(((Number) node).doubleValue()));
+        } else {
+            md.update((byte) 'S');
+            update(md, node.toString());
+        }
+
+        return md.digest();
+    }
+
+    private static void update(MessageDigest md, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        md.update((byte) (bytes.length >>> 24));
+        md.update((byte) (bytes.length >>> 16));
+        md.update((byte) (bytes.length >>> 8));
+        md.update((byte) bytes.length);
+        md.update(bytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
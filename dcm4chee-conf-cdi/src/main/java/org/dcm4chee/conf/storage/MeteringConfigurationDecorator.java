@@ -0,0 +1,224 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.DelegatingConfiguration;
+import org.dcm4che3.conf.core.api.Configuration;
+import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4che3.conf.core.api.Path;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Measures the latency of the operations of the decorated layer (including the layers below it), see {@link ConfigMetrics}.
+ * Only put into the decorator chain if the metrics are enabled.
+ */
+class MeteringConfigurationDecorator extends DelegatingConfiguration implements MultiNodeConfiguration, StreamingConfiguration {
+
+    private final LatencyStats getRoot;
+    private final LatencyStats getNode;
+    private final LatencyStats getNodes;
+    private final LatencyStats exists;
+    private final LatencyStats persist;
+    private final LatencyStats persistNodes;
+    private final LatencyStats refresh;
+    private final LatencyStats remove;
+    private final LatencyStats getPathByUUID;
+    private final LatencyStats search;
+    private final LatencyStats lock;
+
+    MeteringConfigurationDecorator(Configuration delegate, ConfigMetrics metrics, String layer) {
+        super(delegate);
+        getRoot = metrics.getStats(layer, "getConfigurationRoot");
+        getNode = metrics.getStats(layer, "getConfigurationNode");
+        getNodes = metrics.getStats(layer, "getConfigurationNodes");
+        exists = metrics.getStats(layer, "nodeExists");
+        persist = metrics.getStats(layer, "persistNode");
+        persistNodes = metrics.getStats(layer, "persistNodes");
+        refresh = metrics.getStats(layer, "refreshNode");
+        remove = metrics.getStats(layer, "removeNode");
+        getPathByUUID = metrics.getStats(layer, "getPathByUUID");
+        search = metrics.getStats(layer, "search");
+        lock = metrics.getStats(layer, "lock");
+    }
+
+    /**
+     * @return the decorated layer if the given one is metered, otherwise the given one
+     */
+    static Configuration unwrap(Configuration configuration) {
+        return configuration instanceof MeteringConfigurationDecorator ?
+                ((MeteringConfigurationDecorator) configuration).delegate :
+                configuration;
+    }
+
+    @Override
+    public Map<String, Object> getConfigurationRoot() throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            return delegate.getConfigurationRoot();
+        } finally {
+            getRoot.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Object getConfigurationNode(Path path, Class configurableClass) throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            return delegate.getConfigurationNode(path, configurableClass);
+        } finally {
+            getNode.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Recorded as a root read, including the time the consumer takes
+     */
+    @Override
+    public void streamConfigurationRoot(BiConsumer<List<Object>, Map<String, Object>> nodeConsumer) throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            StreamingConfiguration.streamConfigurationRoot(delegate, nodeConsumer);
+        } finally {
+            getRoot.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Map<Path, Object> getConfigurationNodes(List<Path> paths, Class configurableClass) throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            return MultiNodeConfiguration.getConfigurationNodes(delegate, paths, configurableClass);
+        } finally {
+            getNodes.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public boolean nodeExists(Path path) throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            return delegate.nodeExists(path);
+        } finally {
+            exists.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void persistNode(Path path, Map<String, Object> configNode, Class configurableClass) throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            delegate.persistNode(path, configNode, configurableClass);
+        } finally {
+            persist.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void persistNodes(Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            MultiNodeConfiguration.persistNodes(delegate, configNodes, configurableClass);
+        } finally {
+            persistNodes.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void refreshNode(Path path) throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            delegate.refreshNode(path);
+        } finally {
+            refresh.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void removeNode(Path path) throws ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            delegate.removeNode(path);
+        } finally {
+            remove.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Path getPathByUUID(String uuid) {
+        long start = System.nanoTime();
+        try {
+            return delegate.getPathByUUID(uuid);
+        } finally {
+            getPathByUUID.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Iterator search(String liteXPathExpression) throws IllegalArgumentException, ConfigurationException {
+        long start = System.nanoTime();
+        try {
+            return delegate.search(liteXPathExpression);
+        } finally {
+            search.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void lock() {
+        long start = System.nanoTime();
+        try {
+            delegate.lock();
+        } finally {
+            lock.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void runBatch(Batch batch) {
+        delegate.runBatch(batch);
+    }
+}
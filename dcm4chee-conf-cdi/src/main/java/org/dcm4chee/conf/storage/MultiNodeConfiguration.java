@@ -0,0 +1,111 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.api.Configuration;
+import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4che3.conf.core.api.Path;
+
+import java.util.*;
+
+/**
+ * Bulk variants of the node operations of {@link Configuration}.
+ * <p>
+ * Layers of the decorator chain that implement it natively pay their per-call overhead (locking, transaction lookups,
+ * loading the tree, notifications) once per bulk operation instead of once per node. For layers that don't, the static helpers
+ * fall back to the single-node operations.
+ */
+public interface MultiNodeConfiguration extends Configuration {
+
+    /**
+     * @return the nodes by path, in the order of the given paths. Non-existing nodes are mapped to null.
+     */
+    Map<Path, Object> getConfigurationNodes(List<Path> paths, Class configurableClass) throws ConfigurationException;
+
+    /**
+     * Persists the nodes in the iteration order of the map. The paths must not overlap, i.e. none of them may lie within another one.
+     */
+    void persistNodes(Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException;
+
+    static Map<Path, Object> getConfigurationNodes(Configuration configuration, List<Path> paths, Class configurableClass) throws ConfigurationException {
+        if (configuration instanceof MultiNodeConfiguration)
+            return ((MultiNodeConfiguration) configuration).getConfigurationNodes(paths, configurableClass);
+
+        Map<Path, Object> nodes = new LinkedHashMap<>();
+        for (Path path : paths)
+            nodes.put(path, configuration.getConfigurationNode(path, configurableClass));
+        return nodes;
+    }
+
+    static void persistNodes(Configuration configuration, Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException {
+        if (configuration instanceof MultiNodeConfiguration) {
+            ((MultiNodeConfiguration) configuration).persistNodes(configNodes, configurableClass);
+            return;
+        }
+
+        for (Map.Entry<Path, Map<String, Object>> entry : configNodes.entrySet())
+            configuration.persistNode(entry.getKey(), entry.getValue(), configurableClass);
+    }
+
+    /**
+     * @throws IllegalArgumentException if one of the paths lies within another one
+     */
+    static void checkNotOverlapping(Collection<Path> paths) {
+
+        // with a trailing slash, a path is a prefix of exactly the paths within it, and those are sorted right after it
+        TreeSet<String> sorted = new TreeSet<>();
+        for (Path path : paths) {
+            if (path.getPathItems().isEmpty() && paths.size() > 1)
+                throw new IllegalArgumentException("The root cannot be persisted together with other nodes");
+            if (!sorted.add(path.toSimpleEscapedPath() + "/"))
+                throw new IllegalArgumentException("Path '" + path + "' is given more than once");
+        }
+
+        String previous = null;
+        for (String path : sorted) {
+            if (previous != null && path.startsWith(previous))
+                throw new IllegalArgumentException("Paths '" + previous + "' and '" + path + "' overlap");
+            previous = path;
+        }
+    }
+}
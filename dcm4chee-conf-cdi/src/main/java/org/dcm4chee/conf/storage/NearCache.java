@@ -0,0 +1,127 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+package org.dcm4chee.conf.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bounded node-local LRU map that is placed in front of a (replicated) cache.
+ * <p>
+ * Entries must be invalidated by the owner whenever the corresponding entry of the underlying cache changes.
+ * To not re-populate the near cache with a value that was read before such an invalidation, a value read from the
+ * underlying cache is only stored if no invalidation happened since {@link #getVersion()} was called before the read.
+ */
+class NearCache<K, V> {
+
+    private final int maxSize;
+    private final Map<K, V> entries;
+
+    /**
+     * Incremented on every invalidation
+     */
+    private long version;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    NearCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return value;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param readVersion the result of {@link #getVersion()} called before reading the value from the underlying cache
+     */
+    synchronized void put(K key, V value, long readVersion) {
+        if (value != null && readVersion == version)
+            entries.put(key, value);
+    }
+
+    synchronized void invalidate(K key) {
+        version++;
+        entries.remove(key);
+    }
+
+    /**
+     * Invalidates all the entries with a key that matches, in O(size)
+     */
+    synchronized void invalidateIf(Predicate<K> keyPredicate) {
+        version++;
+        entries.keySet().removeIf(keyPredicate);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.api.Configuration;
+import org.dcm4che3.conf.core.api.ConfigurationException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Reads the whole configuration as the nodes it is stored in (e.g. the rows of the db storage), without assembling the tree.
+ * <p>
+ * Layers of the decorator chain that pass it on let the cache be reloaded straight from the stored nodes (see
+ * {@link InfinispanCachingConfigurationDecorator#reloadRoot}). For layers that don't, the static helper falls back to passing
+ * the whole root as one node.
+ */
+public interface StreamingConfiguration extends Configuration {
+
+    /**
+     * Passes every stored node with its path. A node replaces what the nodes passed before it contain at its path (e.g. the placeholder
+     * for a device in the node above the serialization level), so a node is always passed before the nodes stored within it.
+     * The consumer takes over the passed nodes.
+     */
+    void streamConfigurationRoot(BiConsumer<List<Object>, Map<String, Object>> nodeConsumer) throws ConfigurationException;
+
+    static void streamConfigurationRoot(Configuration configuration, BiConsumer<List<Object>, Map<String, Object>> nodeConsumer) throws ConfigurationException {
+        if (configuration instanceof StreamingConfiguration)
+            ((StreamingConfiguration) configuration).streamConfigurationRoot(nodeConsumer);
+        else
+            nodeConsumer.accept(Collections.emptyList(), configuration.getConfigurationRoot());
+    }
+}
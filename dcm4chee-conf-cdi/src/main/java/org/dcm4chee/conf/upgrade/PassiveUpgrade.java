@@ -3,6 +3,8 @@ package org.dcm4chee.conf.upgrade;
 import org.dcm4che3.conf.api.internal.DicomConfigurationManager;
 import org.dcm4che3.conf.api.upgrade.ConfigurationMetadata;
 import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4chee.conf.storage.InconsistentReadException;
+import org.dcm4chee.conf.storage.InfinispanCachingConfigurationDecorator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,9 +44,18 @@ public class PassiveUpgrade
         boolean success = false;
         while (timeout > 0) {
             try {
-                ConfigurationMetadata configurationMetadata = dicomConfigurationManager
-                        .getTypeSafeConfiguration()
-                        .load( DicomConfigurationManager.METADATA_ROOT_PATH, ConfigurationMetadata.class );
+                ConfigurationMetadata configurationMetadata;
+                try {
+                    configurationMetadata = dicomConfigurationManager
+                            .getTypeSafeConfiguration()
+                            .load( DicomConfigurationManager.METADATA_ROOT_PATH, ConfigurationMetadata.class );
+                } catch (RuntimeException e) {
+                    // the upgrade is being applied right now, check again in the next round
+                    if (!isInconsistentRead(e))
+                        throw e;
+                    log.debug("Could not read the configuration metadata consistently, retrying", e);
+                    configurationMetadata = null;
+                }
 
                 if (configurationMetadata != null && configurationMetadata.getVersion() != null &&
                         configurationMetadata.getVersion().equals(upgradeSettings.getUpgradeToVersion())) {
@@ -55,13 +66,12 @@ public class PassiveUpgrade
                      * Infinispan does not support Snapshot isolation or Read Atomic isolation :
                      * if a transaction T1 writes K1 and K2, an overlapping transaction T2 may see both K1 and K2, only K1, only K2, or neither.
                      *
-                     * => we need to avoid hitting a gap in visibility of different cache entries in infinispan,
-                     * i.e. when metadata is already updated but some devices are not yet visible
-                     *
-                     * Reproduced with tests including cluster, observed gap 10-50ms
-                     * Workaround until a better solution found, 5 sec to be on the safe side
+                     * The caching decorator reads consistently (or fails, see above), i.e. once the new metadata was read, all the devices
+                     * upgraded in the same transaction are visible as well. Only if that is disabled, we need to avoid hitting a gap in visibility
+                     * (observed 10-50ms in cluster tests), 5 sec to be on the safe side
                      */
-                    Thread.sleep(5000);
+                    if (Boolean.getBoolean(InfinispanCachingConfigurationDecorator.SNAPSHOT_READS_DISABLED_PROPERTY))
+                        Thread.sleep(5000);
 
                     break;
                 }
@@ -80,4 +90,14 @@ public class PassiveUpgrade
         else
             log.info("Detected the expected configuration version ('{}'), proceeding", upgradeSettings.getUpgradeToVersion());
     }
+
+    /**
+     * The exception can be wrapped by the type-safe layer
+     */
+    private static boolean isInconsistentRead(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause())
+            if (t instanceof InconsistentReadException)
+                return true;
+        return false;
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Compares the compact cache values (see {@link CompactNodeCodec}) with plain maps: the size of the replication payload
+ * (approximated by the java-serialized map), the time to marshal/encode and to decode, and the retained heap. Not a unit test, run with
+ * <pre>java -cp ... org.dcm4chee.conf.storage.CompactNodeCodecBenchmark [aes] [transferCapabilities]</pre>
+ * The synthetic device is much more repetitive than a real configuration, so expect lower compression ratios in practice.
+ */
+public class CompactNodeCodecBenchmark {
+
+    private static final int ITERATIONS = 50;
+
+    public static void main(String[] args) throws IOException {
+        int aes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int tcs = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        Map<String, Object> device = syntheticDevice(aes, tcs);
+
+        // warm-up
+        for (int i = 0; i < ITERATIONS; i++) {
+            CompactNodeCodecTest.serializedSize((Serializable) device);
+            CompactNodeCodec.decode(CompactNodeCodec.encode(device));
+        }
+
+        byte[] encoded = CompactNodeCodec.encode(device);
+        System.out.printf("device with %d AEs x %d transfer capabilities%n", aes, tcs);
+        System.out.printf("serialized map: %d bytes, encoded: %d bytes%n", CompactNodeCodecTest.serializedSize((Serializable) device), encoded.length);
+
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            CompactNodeCodecTest.serializedSize((Serializable) device);
+        System.out.printf("serialize map: %.2f ms%n", (System.nanoTime() - time) / 1e6 / ITERATIONS);
+
+        time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            CompactNodeCodecTest.serializedSize(CompactNodeCodec.encode(device));
+        System.out.printf("encode and serialize: %.2f ms%n", (System.nanoTime() - time) / 1e6 / ITERATIONS);
+
+        time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            CompactNodeCodec.decode(encoded);
+        System.out.printf("decode: %.2f ms%n", (System.nanoTime() - time) / 1e6 / ITERATIONS);
+
+        System.out.printf("retained heap: map %.2f MB, encoded %.2f MB%n",
+                retainedHeap(() -> syntheticDevice(aes, tcs)) / 1e6, retainedHeap(() -> CompactNodeCodec.encode(device)) / 1e6);
+    }
+
+    /**
+     * @return approximate heap retained by one of the created objects
+     */
+    private static double retainedHeap(java.util.function.Supplier<Object> factory) {
+        int count = 20;
+        List<Object> retained = new ArrayList<>(count);
+        long before = usedHeap();
+        for (int i = 0; i < count; i++)
+            retained.add(factory.get());
+        long after = usedHeap();
+        if (retained.size() != count)
+            throw new IllegalStateException();
+        return (double) (after - before) / count;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return a node that looks like a device with the given number of network AEs and transfer capabilities per AE
+     */
+    static Map<String, Object> syntheticDevice(int aes, int transferCapabilities) {
+        Map<String, Object> device = new HashMap<>();
+        device.put("dicomDeviceName", "device");
+        device.put("_.uuid", UUID.nameUUIDFromBytes("device".getBytes()).toString());
+        device.put("dicomInstalled", true);
+
+        Map<String, Object> networkAEs = new HashMap<>();
+        for (int i = 0; i < aes; i++) {
+            Map<String, Object> ae = new HashMap<>();
+            ae.put("dicomAETitle", "AE" + i);
+            ae.put("dicomAssociationInitiator", true);
+            ae.put("dicomAssociationAcceptor", true);
+            ae.put("dicomNetworkConnectionReference", Collections.singletonList("/dicomNetworkConnection[cn='dicom']"));
+
+            Map<String, Object> tcs = new HashMap<>();
+            for (int j = 0; j < transferCapabilities; j++) {
+                Map<String, Object> tc = new HashMap<>();
+                tc.put("cn", "TC" + j);
+                tc.put("dicomSOPClass", "1.2.840.10008.5.1.4.1.1." + j);
+                tc.put("dicomTransferRole", j % 2 == 0 ? "SCP" : "SCU");
+                tc.put("dicomTransferSyntax", Arrays.asList("1.2.840.10008.1.2", "1.2.840.10008.1.2.1", "1.2.840.10008.1.2.4.70"));
+                tcs.put("TC" + j, tc);
+            }
+            ae.put("dcmTransferCapability", tcs);
+            networkAEs.put("AE" + i, ae);
+        }
+        device.put("dicomNetworkAE", networkAEs);
+        return device;
+    }
+}
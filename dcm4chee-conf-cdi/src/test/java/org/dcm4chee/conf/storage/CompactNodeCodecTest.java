@@ -0,0 +1,109 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CompactNodeCodecTest {
+
+    @Test
+    public void testRoundtrip() {
+        Map<String, Object> node = CompactNodeCodecBenchmark.syntheticDevice(3, 2);
+        assertEquals(node, CompactNodeCodec.decode(CompactNodeCodec.encode(node)));
+    }
+
+    @Test
+    public void testRoundtripOfPrimitives() {
+        Map<String, Object> node = new HashMap<>();
+        node.put("string", "ä/\"x\"");
+        node.put("int", 42);
+        node.put("bool", true);
+        node.put("null", null);
+        node.put("list", Arrays.asList("a", 1, false));
+        node.put("empty", new HashMap<>());
+
+        assertEquals(node, CompactNodeCodec.decode(CompactNodeCodec.encode(node)));
+    }
+
+    @Test
+    public void testToNode() {
+        Map<String, Object> node = CompactNodeCodecBenchmark.syntheticDevice(1, 1);
+
+        assertEquals(node, CompactNodeCodec.toNode(CompactNodeCodec.encode(node)));
+
+        // values written with the compact format disabled are taken as is
+        assertSame(node, CompactNodeCodec.toNode(node));
+        assertNull(CompactNodeCodec.toNode(null));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDecodeGarbage() {
+        CompactNodeCodec.decode(new byte[]{1, 2, 3});
+    }
+
+    /**
+     * The encoded value must be much smaller than the serialized map, which approximates what is replicated otherwise
+     */
+    @Test
+    public void testEncodedSize() throws IOException {
+        Map<String, Object> node = CompactNodeCodecBenchmark.syntheticDevice(50, 20);
+
+        int encoded = CompactNodeCodec.encode(node).length;
+        int serialized = serializedSize((Serializable) node);
+
+        assertTrue("encoded " + encoded + " bytes, serialized " + serialized + " bytes", encoded * 10 < serialized);
+    }
+
+    static int serializedSize(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.size();
+    }
+}
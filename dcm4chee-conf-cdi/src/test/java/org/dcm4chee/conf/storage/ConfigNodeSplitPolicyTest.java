@@ -0,0 +1,199 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.Nodes;
+import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+@SuppressWarnings("unchecked")
+public class ConfigNodeSplitPolicyTest {
+
+    private static final String AES_RULE = "/dicomConfigurationRoot/dicomDevicesRoot/*/dicomNetworkAE";
+
+    private static final List<Object> DEVICE = Arrays.<Object>asList("dicomConfigurationRoot", "dicomDevicesRoot", "dev");
+
+    private final ConfigNodeSplitPolicy policy = new ConfigNodeSplitPolicy(AES_RULE + ", /dicomConfigurationRoot/dicomDevicesRoot/*/deviceExtensions");
+
+    @Test
+    public void testNoRules() {
+        assertTrue(new ConfigNodeSplitPolicy(null).isEmpty());
+        assertTrue(new ConfigNodeSplitPolicy(" , ").isEmpty());
+        assertFalse(policy.isEmpty());
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testRuleWithoutWildcard() {
+        new ConfigNodeSplitPolicy("/dicomConfigurationRoot/dicomDevicesRoot/dev/dicomNetworkAE");
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testRuleTooShort() {
+        new ConfigNodeSplitPolicy("/dicomConfigurationRoot/*/dicomNetworkAE");
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testRuleTooLong() {
+        new ConfigNodeSplitPolicy(AES_RULE + "/AE");
+    }
+
+    @Test
+    public void testLevels() {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("dicomNetworkAE", "deviceExtensions")), policy.getSplitProperties(DEVICE));
+        assertEquals(Collections.emptySet(), policy.getSplitProperties(Arrays.<Object>asList("dicomConfigurationRoot", "hl7Root", "x")));
+
+        assertEquals(ConfigNodeSplitPolicy.BASE_LEVEL, policy.getLevel(DEVICE));
+        assertEquals(ConfigNodeSplitPolicy.BASE_LEVEL, policy.getLevel(path(DEVICE, "dicomConnection")));
+        assertEquals(ConfigNodeSplitPolicy.SPLIT_LEVEL, policy.getLevel(path(DEVICE, "dicomNetworkAE")));
+        assertEquals(ConfigNodeSplitPolicy.SPLIT_LEVEL, policy.getLevel(path(DEVICE, "dicomNetworkAE", "AE1", "dicomAETitle")));
+
+        assertTrue(policy.isSplitProperty(path(DEVICE, "dicomNetworkAE")));
+        assertFalse(policy.isSplitProperty(path(DEVICE, "dicomNetworkAE", "AE1")));
+        assertFalse(policy.isSplitProperty(path(DEVICE, "dicomConnection")));
+    }
+
+    @Test
+    public void testSplitAndMerge() {
+        Map<String, Object> device = device();
+        Map<String, Object> original = (Map<String, Object>) Nodes.deepCloneNode(device);
+
+        Map<List<Object>, Map<String, Object>> units = split(DEVICE, device);
+
+        assertEquals(Arrays.asList(DEVICE, path(DEVICE, "dicomNetworkAE", "AE1"), path(DEVICE, "dicomNetworkAE", "AE2")),
+                new ArrayList<>(units.keySet()));
+
+        // the split property is only a placeholder in the base unit
+        assertEquals(new HashMap<>(), units.get(DEVICE).get("dicomNetworkAE"));
+        assertEquals("AE1", units.get(path(DEVICE, "dicomNetworkAE", "AE1")).get("dicomAETitle"));
+
+        // the node is not modified
+        assertEquals(original, device);
+
+        Map<String, Object> root = new HashMap<>();
+        units.forEach((unitPath, unit) -> Nodes.replaceNode(root, Nodes.deepCloneNode(unit), unitPath));
+        assertEquals(original, Nodes.getNode(root, DEVICE));
+    }
+
+    @Test
+    public void testSplitProperty() {
+        List<Object> aesPath = path(DEVICE, "dicomNetworkAE");
+        Map<List<Object>, Map<String, Object>> units = split(aesPath, (Map<String, Object>) device().get("dicomNetworkAE"));
+
+        assertEquals(Arrays.asList(path(aesPath, "AE1"), path(aesPath, "AE2")), new ArrayList<>(units.keySet()));
+    }
+
+    @Test
+    public void testWithoutRules() {
+        Map<String, Object> device = device();
+        Map<List<Object>, Map<String, Object>> units = new LinkedHashMap<>();
+        new ConfigNodeSplitPolicy(null).split(DEVICE, device, units::put);
+
+        assertEquals(Collections.singletonMap(DEVICE, device), units);
+    }
+
+    /**
+     * Only maps can be split, other values of a split property stay in the base unit
+     */
+    @Test
+    public void testNonMapProperty() {
+        Map<String, Object> device = device();
+        device.put("dicomNetworkAE", Arrays.asList("AE1", "AE2"));
+        device.put("deviceExtensions", "none");
+
+        Map<List<Object>, Map<String, Object>> units = split(DEVICE, device);
+
+        assertEquals(Collections.singletonList(DEVICE), new ArrayList<>(units.keySet()));
+        assertEquals(Arrays.asList("AE1", "AE2"), units.get(DEVICE).get("dicomNetworkAE"));
+        assertEquals("none", units.get(DEVICE).get("deviceExtensions"));
+    }
+
+    @Test
+    public void testNullChildIsSkipped() {
+        Map<String, Object> device = device();
+        ((Map<String, Object>) device.get("dicomNetworkAE")).put("AE3", null);
+
+        assertFalse(split(DEVICE, device).containsKey(path(DEVICE, "dicomNetworkAE", "AE3")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonNodeChild() {
+        Map<String, Object> device = device();
+        ((Map<String, Object>) device.get("dicomNetworkAE")).put("AE3", "not a node");
+
+        split(DEVICE, device);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSplitBelowLevel() {
+        split(path(DEVICE, "dicomConnection"), new HashMap<>());
+    }
+
+    private Map<List<Object>, Map<String, Object>> split(List<Object> pathItems, Map<String, Object> node) {
+        Map<List<Object>, Map<String, Object>> units = new LinkedHashMap<>();
+        policy.split(pathItems, node, units::put);
+        return units;
+    }
+
+    private static List<Object> path(List<Object> parent, Object... items) {
+        List<Object> path = new ArrayList<>(parent);
+        path.addAll(Arrays.asList(items));
+        return path;
+    }
+
+    private static Map<String, Object> device() {
+        Map<String, Object> aes = new TreeMap<>();
+        for (String aeTitle : Arrays.asList("AE1", "AE2")) {
+            Map<String, Object> ae = new HashMap<>();
+            ae.put("dicomAETitle", aeTitle);
+            ae.put("dicomAssociationAcceptor", true);
+            aes.put(aeTitle, ae);
+        }
+
+        Map<String, Object> device = new HashMap<>();
+        device.put("dicomDeviceName", "dev");
+        device.put("dicomConnection", Collections.singletonList(Collections.singletonMap("cn", "dicom")));
+        device.put("dicomNetworkAE", aes);
+        return device;
+    }
+}
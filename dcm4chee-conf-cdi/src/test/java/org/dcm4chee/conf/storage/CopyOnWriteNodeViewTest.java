@@ -0,0 +1,250 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.dcm4che3.conf.core.Nodes;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+@SuppressWarnings("unchecked")
+public class CopyOnWriteNodeViewTest {
+
+    @Test
+    public void testReadThrough() {
+        Map<String, Object> shared = node();
+        Map<String, Object> view = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+
+        assertEquals(shared, view);
+        assertEquals("dev", view.get("dicomDeviceName"));
+        assertEquals(shared.get("dicomNetworkAE"), view.get("dicomNetworkAE"));
+        assertTrue(view.containsKey("dicomConnection"));
+        assertEquals(shared.size(), view.size());
+    }
+
+    @Test
+    public void testPrimitives() {
+        assertEquals("x", CopyOnWriteNodeView.of("x"));
+        assertEquals(1, CopyOnWriteNodeView.of(1));
+        assertNull(CopyOnWriteNodeView.of(null));
+    }
+
+    @Test
+    public void testModificationsAreIsolated() {
+        Map<String, Object> shared = node();
+        Map<String, Object> original = (Map<String, Object>) Nodes.deepCloneNode(shared);
+
+        Map<String, Object> view = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+        view.put("dicomDeviceName", "changed");
+        view.remove("dicomInstalled");
+        ((Map<String, Object>) ((Map<String, Object>) view.get("dicomNetworkAE")).get("AE1")).put("dicomAETitle", "changed");
+        ((List<Object>) view.get("dicomConnection")).add(Collections.singletonMap("cn", "new"));
+
+        assertEquals(original, shared);
+
+        assertEquals("changed", view.get("dicomDeviceName"));
+        assertFalse(view.containsKey("dicomInstalled"));
+        assertEquals("changed", Nodes.getNode(view, Arrays.<Object>asList("dicomNetworkAE", "AE1", "dicomAETitle")));
+        assertEquals(2, ((List<Object>) view.get("dicomConnection")).size());
+    }
+
+    @Test
+    public void testViewsAreIndependent() {
+        Map<String, Object> shared = node();
+        Map<String, Object> view1 = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+        Map<String, Object> view2 = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+
+        ((Map<String, Object>) view1.get("dicomNetworkAE")).remove("AE1");
+
+        assertTrue(((Map<String, Object>) view2.get("dicomNetworkAE")).containsKey("AE1"));
+    }
+
+    /**
+     * A nested node must stay the same object, otherwise modifications made through a reference to it would be lost
+     */
+    @Test
+    public void testIdentityOfNestedViews() {
+        Map<String, Object> view = (Map<String, Object>) CopyOnWriteNodeView.of(node());
+
+        Map<String, Object> aes = (Map<String, Object>) view.get("dicomNetworkAE");
+        assertSame(aes, view.get("dicomNetworkAE"));
+
+        aes.put("AE3", new HashMap<>());
+
+        // materializes the parent, the nested view must survive that
+        view.put("dicomDeviceName", "changed");
+        assertSame(aes, view.get("dicomNetworkAE"));
+        assertTrue(((Map<String, Object>) view.get("dicomNetworkAE")).containsKey("AE3"));
+
+        List<Object> connections = (List<Object>) view.get("dicomConnection");
+        Object connection = connections.get(0);
+        assertSame(connection, connections.get(0));
+        assertSame(connection, ((List<Object>) view.get("dicomConnection")).get(0));
+    }
+
+    @Test
+    public void testIteration() {
+        Map<String, Object> shared = node();
+        Map<String, Object> view = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, Object> entry : view.entrySet()) {
+            keys.add(entry.getKey());
+            if (entry.getValue() instanceof Map)
+                ((Map<String, Object>) entry.getValue()).clear();
+        }
+
+        assertEquals(shared.keySet(), keys);
+        assertFalse(((Map<String, Object>) shared.get("dicomNetworkAE")).isEmpty());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Map<String, Object> view = (Map<String, Object>) CopyOnWriteNodeView.of(node());
+        view.put("dicomDeviceName", "changed");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(view);
+        }
+        Object deserialized;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            deserialized = in.readObject();
+        }
+
+        // serialized as a plain node
+        assertEquals(view, deserialized);
+        assertNotEquals(CopyOnWriteNodeView.class, deserialized.getClass().getEnclosingClass());
+        assertNotEquals(CopyOnWriteNodeView.class, ((Map<String, Object>) deserialized).get("dicomConnection").getClass().getEnclosingClass());
+    }
+
+    @Test
+    public void testToShared() {
+        Map<String, Object> shared = node();
+
+        // read only, so the wrapped node can be shared as is
+        Map<String, Object> view = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+        view.get("dicomNetworkAE");
+        assertSame(shared, CopyOnWriteNodeView.toShared(view));
+
+        // modified, so it must be copied
+        Map<String, Object> modified = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+        ((Map<String, Object>) modified.get("dicomNetworkAE")).remove("AE1");
+        Object copy = CopyOnWriteNodeView.toShared(modified);
+        assertNotSame(shared, copy);
+        assertEquals(modified, copy);
+        assertNotEquals(CopyOnWriteNodeView.class, copy.getClass().getEnclosingClass());
+    }
+
+    /**
+     * Reading nested list elements and iterating copy levels of the view, which must not prevent sharing the wrapped node
+     */
+    @Test
+    public void testToSharedAfterReadsAndIteration() {
+        Map<String, Object> shared = node();
+
+        Map<String, Object> view = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+        for (Map.Entry<String, Object> entry : view.entrySet())
+            if (entry.getValue() instanceof Map)
+                for (Object ae : ((Map<String, Object>) entry.getValue()).values())
+                    ((Map<String, Object>) ae).get("dicomAETitle");
+        ((Map<String, Object>) ((List<Object>) view.get("dicomConnection")).get(0)).get("cn");
+        for (Object connection : (List<Object>) view.get("dicomConnection"))
+            assertNotNull(connection);
+
+        assertSame(shared, CopyOnWriteNodeView.toShared(view));
+    }
+
+    @Test
+    public void testToSharedAfterModificationOfNestedListElement() {
+        Map<String, Object> shared = node();
+        Map<String, Object> original = (Map<String, Object>) Nodes.deepCloneNode(shared);
+
+        Map<String, Object> view = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+        ((Map<String, Object>) ((List<Object>) view.get("dicomConnection")).get(0)).put("cn", "changed");
+
+        Object copy = CopyOnWriteNodeView.toShared(view);
+        assertNotSame(shared, copy);
+        assertEquals("changed", Nodes.getNode(copy, Arrays.<Object>asList("dicomConnection", 0, "cn")));
+        assertEquals(original, shared);
+    }
+
+    @Test
+    public void testToSharedAfterModificationThroughEntries() {
+        Map<String, Object> shared = node();
+        Map<String, Object> original = (Map<String, Object>) Nodes.deepCloneNode(shared);
+
+        Map<String, Object> setView = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+        for (Map.Entry<String, Object> entry : setView.entrySet())
+            if (entry.getKey().equals("dicomDeviceName"))
+                entry.setValue("changed");
+        assertEquals("changed", setView.get("dicomDeviceName"));
+        assertNotSame(shared, CopyOnWriteNodeView.toShared(setView));
+
+        Map<String, Object> removeView = (Map<String, Object>) CopyOnWriteNodeView.of(shared);
+        removeView.keySet().remove("dicomInstalled");
+        assertFalse(removeView.containsKey("dicomInstalled"));
+        assertNotSame(shared, CopyOnWriteNodeView.toShared(removeView));
+
+        assertEquals(original, shared);
+    }
+
+    private static Map<String, Object> node() {
+        Map<String, Object> aes = new HashMap<>();
+        for (String aeTitle : Arrays.asList("AE1", "AE2")) {
+            Map<String, Object> ae = new HashMap<>();
+            ae.put("dicomAETitle", aeTitle);
+            aes.put(aeTitle, ae);
+        }
+
+        List<Object> connections = new ArrayList<>();
+        connections.add(new HashMap<>(Collections.singletonMap("cn", "dicom")));
+
+        Map<String, Object> node = new HashMap<>();
+        node.put("dicomDeviceName", "dev");
+        node.put("dicomInstalled", true);
+        node.put("dicomNetworkAE", aes);
+        node.put("dicomConnection", connections);
+        return node;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitQueueTest {
+
+    // modifications run by each transaction, in order
+    private final List<List<String>> txs = Collections.synchronizedList(new ArrayList<>());
+
+    private final CountDownLatch firstTxStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseFirstTx = new CountDownLatch(1);
+
+    private List<String> currentTx;
+
+    /**
+     * Runs the modifications like a transaction would, the first one blocks until released so that other writers pile up
+     */
+    private void runInTx(Runnable r) {
+        boolean first = txs.isEmpty();
+        currentTx = new ArrayList<>();
+        txs.add(currentTx);
+
+        if (first) {
+            firstTxStarted.countDown();
+            try {
+                assertTrue(releaseFirstTx.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        r.run();
+    }
+
+    private Runnable write(String name) {
+        return () -> currentTx.add(name);
+    }
+
+    private Runnable failingWrite(String name) {
+        return () -> {
+            currentTx.add(name);
+            throw new IllegalStateException(name);
+        };
+    }
+
+    @Test
+    public void testSingleWrite() {
+        releaseFirstTx.countDown();
+        GroupCommitQueue queue = new GroupCommitQueue(100, this::runInTx);
+
+        queue.run(write("a"));
+
+        assertEquals(Collections.singletonList(Collections.singletonList("a")), txs);
+    }
+
+    @Test
+    public void testSingleWriteFailure() {
+        releaseFirstTx.countDown();
+        GroupCommitQueue queue = new GroupCommitQueue(100, this::runInTx);
+
+        try {
+            queue.run(failingWrite("a"));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("a", e.getMessage());
+        }
+
+        // not retried
+        assertEquals(1, txs.size());
+    }
+
+    /**
+     * The writers queued while a group is being committed are committed together in the next one
+     */
+    @Test
+    public void testBatching() throws Exception {
+        GroupCommitQueue queue = new GroupCommitQueue(100, this::runInTx);
+
+        Writer a = startFirst(queue, write("a"));
+        Writer b = startQueued(queue, write("b"));
+        Writer c = startQueued(queue, write("c"));
+        Writer d = startQueued(queue, write("d"));
+
+        releaseFirstTx.countDown();
+        joinAll(a, b, c, d);
+
+        assertEquals(Arrays.asList(
+                Collections.singletonList("a"),
+                Arrays.asList("b", "c", "d")), txs);
+        for (Writer w : Arrays.asList(a, b, c, d))
+            assertNull(w.failure);
+    }
+
+    /**
+     * Whichever of the queued writers becomes the leader, its own modification counts towards the max size
+     */
+    @Test
+    public void testMaxSize() throws Exception {
+        GroupCommitQueue queue = new GroupCommitQueue(2, this::runInTx);
+
+        Writer a = startFirst(queue, write("a"));
+        Writer b = startQueued(queue, write("b"));
+        Writer c = startQueued(queue, write("c"));
+        Writer d = startQueued(queue, write("d"));
+
+        releaseFirstTx.countDown();
+        joinAll(a, b, c, d);
+
+        assertEquals(Collections.singletonList("a"), txs.get(0));
+        assertEquals(3, txs.size());
+
+        List<String> committed = new ArrayList<>();
+        for (List<String> tx : txs) {
+            assertTrue(tx.size() <= 2);
+            committed.addAll(tx);
+        }
+        Collections.sort(committed);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), committed);
+    }
+
+    /**
+     * A failed group is retried one by one, so only the writer whose modification fails gets the exception
+     */
+    @Test
+    public void testFailurePropagation() throws Exception {
+        GroupCommitQueue queue = new GroupCommitQueue(100, this::runInTx);
+
+        Writer a = startFirst(queue, write("a"));
+        Writer b = startQueued(queue, write("b"));
+        Writer c = startQueued(queue, failingWrite("c"));
+        Writer d = startQueued(queue, write("d"));
+
+        releaseFirstTx.countDown();
+        joinAll(a, b, c, d);
+
+        assertEquals(Arrays.asList(
+                Collections.singletonList("a"),
+                Arrays.asList("b", "c"),
+                Collections.singletonList("b"),
+                Collections.singletonList("c"),
+                Collections.singletonList("d")), txs);
+
+        assertNull(a.failure);
+        assertNull(b.failure);
+        assertTrue(c.failure instanceof IllegalStateException);
+        assertEquals("c", c.failure.getMessage());
+        assertNull(d.failure);
+    }
+
+    /**
+     * An error must not leave the other writers of the group waiting, and only reaches the writer that caused it
+     */
+    @Test
+    public void testErrorPropagation() throws Exception {
+        GroupCommitQueue queue = new GroupCommitQueue(100, this::runInTx);
+
+        Writer a = startFirst(queue, write("a"));
+        Writer b = startQueued(queue, write("b"));
+        Writer c = startQueued(queue, () -> {
+            currentTx.add("c");
+            throw new AssertionError("c");
+        });
+        Writer d = startQueued(queue, write("d"));
+
+        releaseFirstTx.countDown();
+        joinAll(a, b, c, d);
+
+        assertEquals(Arrays.asList(
+                Collections.singletonList("a"),
+                Arrays.asList("b", "c"),
+                Collections.singletonList("b"),
+                Collections.singletonList("c"),
+                Collections.singletonList("d")), txs);
+
+        assertNull(a.failure);
+        assertNull(b.failure);
+        assertTrue(c.failure instanceof AssertionError);
+        assertEquals("c", c.failure.getMessage());
+        assertNull(d.failure);
+    }
+
+    private Writer startFirst(GroupCommitQueue queue, Runnable r) throws InterruptedException {
+        Writer writer = new Writer(queue, r);
+        writer.start();
+        assertTrue(firstTxStarted.await(10, TimeUnit.SECONDS));
+        return writer;
+    }
+
+    /**
+     * Starts the writer and waits until it is queued, so that the order of the queue is deterministic
+     */
+    private Writer startQueued(GroupCommitQueue queue, Runnable r) throws InterruptedException {
+        Writer writer = new Writer(queue, r);
+        writer.start();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getState() != Thread.State.WAITING) {
+            assertTrue("writer not queued", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return writer;
+    }
+
+    private static void joinAll(Writer... writers) throws InterruptedException {
+        for (Writer w : writers) {
+            w.join(10000);
+            assertFalse(w.isAlive());
+        }
+    }
+
+    private static class Writer extends Thread {
+        private final GroupCommitQueue queue;
+        private final Runnable runnable;
+        private volatile Throwable failure;
+
+        private Writer(GroupCommitQueue queue, Runnable runnable) {
+            this.queue = queue;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                queue.run(runnable);
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+    }
+}
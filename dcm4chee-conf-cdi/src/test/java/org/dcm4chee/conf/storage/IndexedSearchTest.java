@@ -0,0 +1,140 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IndexedSearchTest {
+
+    private static final String AE_TITLES = "/dicomConfigurationRoot/dicomDevicesRoot/*/dicomNetworkAE/*/dicomAETitle";
+
+    private static final List<Object> DEV1 = Arrays.<Object>asList("dicomConfigurationRoot", "dicomDevicesRoot", "dev1");
+
+    @Test
+    public void testCompile() {
+        assertNotNull(IndexedSearch.compile(AE_TITLES));
+        assertNotNull(IndexedSearch.compile(" " + AE_TITLES + " "));
+        assertNotNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*[dicomInstalled='true']/dicomDeviceName"));
+        assertNotNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/dev1/dicomNetworkAE/*[dicomAETitle='a/b']"));
+        assertNotNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*"));
+    }
+
+    @Test
+    public void testCannotCompile() {
+        // not evaluated from the root
+        assertNull(IndexedSearch.compile("dicomConfigurationRoot/dicomDevicesRoot/*"));
+        assertNull(IndexedSearch.compile("//dicomAETitle"));
+
+        // above the unit level
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot"));
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/*[1]/dev1"));
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/dev-*"));
+
+        // could look outside of the unit
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*[dicomDeviceName=/dicomConfigurationRoot/x]"));
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*/../x"));
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*//dicomAETitle"));
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*/ancestor::x"));
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*[dicomDeviceName=$name]"));
+
+        // positional
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*[1]"));
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*[last()]"));
+        assertNull(IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/*[position()=2]"));
+    }
+
+    @Test
+    public void testMatches() {
+        IndexedSearch search = IndexedSearch.compile(AE_TITLES);
+
+        assertEquals(Arrays.asList("dicomConfigurationRoot", "dicomDevicesRoot"), search.getFixedPathItems());
+        assertTrue(search.matches(DEV1));
+        assertFalse(search.matches(Arrays.<Object>asList("dicomConfigurationRoot", "hl7Root", "dev1")));
+        assertFalse(search.matches(Arrays.<Object>asList("dicomConfigurationRoot", "dicomDevicesRoot")));
+        assertFalse(search.matches(Arrays.<Object>asList("dicomConfigurationRoot", "dicomDevicesRoot", "dev1", "dicomNetworkAE")));
+
+        IndexedSearch fixed = IndexedSearch.compile("/dicomConfigurationRoot/dicomDevicesRoot/dev1/dicomDeviceName");
+        assertEquals(DEV1, fixed.getFixedPathItems());
+        assertTrue(fixed.matches(DEV1));
+        assertFalse(fixed.matches(Arrays.<Object>asList("dicomConfigurationRoot", "dicomDevicesRoot", "dev2")));
+    }
+
+    @Test
+    public void testEvaluate() {
+        Map<String, Object> aes = new HashMap<>();
+        aes.put("AE1", Collections.singletonMap("dicomAETitle", "AE1"));
+        Map<String, Object> device = new HashMap<>();
+        device.put("dicomNetworkAE", aes);
+
+        assertEquals(Collections.singletonList("AE1"), IndexedSearch.compile(AE_TITLES).evaluate(DEV1, device));
+    }
+
+    @Test
+    public void testResults() {
+        IndexedSearch search = IndexedSearch.compile(AE_TITLES);
+        List<Object> results = Collections.singletonList("AE1");
+
+        assertNull(search.getResults("dev1"));
+
+        search.putResults("dev1", results, search.getVersion());
+        assertSame(results, search.getResults("dev1"));
+
+        search.invalidate("dev1");
+        assertNull(search.getResults("dev1"));
+    }
+
+    /**
+     * Results evaluated before an invalidation must not be kept, as they could belong to the old content of the unit
+     */
+    @Test
+    public void testResultsEvaluatedBeforeInvalidation() {
+        IndexedSearch search = IndexedSearch.compile(AE_TITLES);
+
+        long version = search.getVersion();
+        search.invalidate("dev2");
+        search.putResults("dev1", Collections.singletonList("AE1"), version);
+
+        assertNull(search.getResults("dev1"));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MerkleHashesTest {
+
+    private static final List<Object> DEV1 = Arrays.<Object>asList("dicomConfigurationRoot", "dicomDevicesRoot", "dev1");
+    private static final List<Object> DEV2 = Arrays.<Object>asList("dicomConfigurationRoot", "dicomDevicesRoot", "dev2");
+
+    @Test
+    public void testHashDoesNotDependOnMapImplementationOrOrder() {
+        Map<String, Object> hashMap = new HashMap<>();
+        Map<String, Object> linkedMap = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++)
+            hashMap.put("key" + i, i);
+        for (int i = 19; i >= 0; i--)
+            linkedMap.put("key" + i, i);
+
+        assertEquals(MerkleHashes.hash(hashMap), MerkleHashes.hash(linkedMap));
+        assertEquals(MerkleHashes.hash(hashMap), MerkleHashes.hash(new TreeMap<>(hashMap)));
+    }
+
+    /**
+     * The same value can come as a different type, e.g. after a json roundtrip
+     */
+    @Test
+    public void testNumberTypes() {
+        assertEquals(MerkleHashes.hash(42), MerkleHashes.hash(42L));
+        assertEquals(MerkleHashes.hash(1.5f), MerkleHashes.hash(1.5d));
+        assertNotEquals(MerkleHashes.hash(42), MerkleHashes.hash("42"));
+    }
+
+    @Test
+    public void testHashDiffers() {
+        assertNotEquals(MerkleHashes.hash(Collections.singletonMap("a", "b")), MerkleHashes.hash(Collections.singletonMap("a", "c")));
+        assertNotEquals(MerkleHashes.hash(Collections.singletonMap("a", "b")), MerkleHashes.hash(Collections.singletonMap("b", "b")));
+        assertNotEquals(MerkleHashes.hash(Arrays.asList("a", "b")), MerkleHashes.hash(Arrays.asList("b", "a")));
+        assertNotEquals(MerkleHashes.hash(Collections.singletonMap("a", null)), MerkleHashes.hash(Collections.singletonMap("a", "null")));
+        assertNotEquals(MerkleHashes.hash(new HashMap<>()), MerkleHashes.hash(new ArrayList<>()));
+
+        // the strings are length-prefixed, so they cannot be shifted between keys and values
+        assertNotEquals(MerkleHashes.hash(Collections.singletonMap("ab", "c")), MerkleHashes.hash(Collections.singletonMap("a", "bc")));
+    }
+
+    @Test
+    public void testCombine() {
+        Map<String, String> parts = new HashMap<>();
+        parts.put("a", MerkleHashes.hash("x"));
+        parts.put("b", MerkleHashes.hash("y"));
+
+        Map<String, String> reversed = new LinkedHashMap<>();
+        reversed.put("b", parts.get("b"));
+        reversed.put("a", parts.get("a"));
+
+        assertEquals(MerkleHashes.combine(parts), MerkleHashes.combine(reversed));
+
+        parts.put("b", MerkleHashes.hash("z"));
+        assertNotEquals(MerkleHashes.combine(parts), MerkleHashes.combine(reversed));
+    }
+
+    @Test
+    public void testKeys() {
+        assertNotEquals(MerkleHashes.unitKey(DEV1), MerkleHashes.subtreeKey(DEV1));
+        assertNotEquals(MerkleHashes.unitKey(DEV1), MerkleHashes.unitKey(DEV2));
+    }
+
+    @Test
+    public void testInvalidate() {
+        MerkleHashes hashes = new MerkleHashes();
+        String dev1 = MerkleHashes.unitKey(DEV1);
+        String dev2 = MerkleHashes.unitKey(DEV2);
+        String devices = MerkleHashes.subtreeKey(DEV1.subList(0, 2));
+        String root = MerkleHashes.subtreeKey(Collections.emptyList());
+
+        for (String key : Arrays.asList(dev1, dev2, devices, root))
+            hashes.put(key, "hash", hashes.getVersion());
+
+        hashes.invalidate(DEV1);
+
+        // the unit and the subtrees that contain it, but not the other units
+        assertNull(hashes.get(dev1));
+        assertNull(hashes.get(devices));
+        assertNull(hashes.get(root));
+        assertEquals("hash", hashes.get(dev2));
+    }
+
+    /**
+     * A hash calculated before an invalidation must not be kept, as it could be the hash of the old content
+     */
+    @Test
+    public void testHashCalculatedBeforeInvalidation() {
+        MerkleHashes hashes = new MerkleHashes();
+        String dev1 = MerkleHashes.unitKey(DEV1);
+
+        long version = hashes.getVersion();
+        hashes.invalidate(DEV2);
+        hashes.put(dev1, "hash", version);
+
+        assertNull(hashes.get(dev1));
+
+        hashes.put(dev1, "hash", hashes.getVersion());
+        assertEquals("hash", hashes.get(dev1));
+    }
+}
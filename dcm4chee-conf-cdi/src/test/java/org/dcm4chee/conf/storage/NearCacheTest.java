@@ -0,0 +1,139 @@
+/*
+ * *** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NearCacheTest {
+
+    @Test
+    public void testGetPut() {
+        NearCache<String, String> cache = new NearCache<>(10);
+
+        assertNull(cache.get("a"));
+
+        cache.put("a", "A", cache.getVersion());
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testNullNotStored() {
+        NearCache<String, String> cache = new NearCache<>(10);
+
+        cache.put("a", null, cache.getVersion());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        NearCache<String, String> cache = new NearCache<>(10);
+        cache.put("a", "A", cache.getVersion());
+        cache.put("b", "B", cache.getVersion());
+
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals("B", cache.get("b"));
+    }
+
+    /**
+     * A value read before an invalidation could be the old one, so it must not be stored, even under another key
+     */
+    @Test
+    public void testPutAfterInvalidate() {
+        NearCache<String, String> cache = new NearCache<>(10);
+
+        long version = cache.getVersion();
+        cache.invalidate("b");
+        cache.put("a", "A", version);
+        assertNull(cache.get("a"));
+
+        // a read started after the invalidation is fine
+        cache.put("a", "A", cache.getVersion());
+        assertEquals("A", cache.get("a"));
+    }
+
+    @Test
+    public void testPutAfterInvalidateIf() {
+        NearCache<String, String> cache = new NearCache<>(10);
+        cache.put("a1", "A1", cache.getVersion());
+        cache.put("b1", "B1", cache.getVersion());
+
+        long version = cache.getVersion();
+        cache.invalidateIf((key) -> key.startsWith("a"));
+        assertNull(cache.get("a1"));
+        assertEquals("B1", cache.get("b1"));
+
+        cache.put("a2", "A2", version);
+        assertNull(cache.get("a2"));
+    }
+
+    @Test
+    public void testLruEviction() {
+        NearCache<String, String> cache = new NearCache<>(2);
+        cache.put("a", "A", cache.getVersion());
+        cache.put("b", "B", cache.getVersion());
+
+        // makes "b" the eldest
+        cache.get("a");
+        cache.put("c", "C", cache.getVersion());
+
+        assertEquals(2, cache.size());
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("C", cache.get("c"));
+    }
+
+    @Test
+    public void testCounters() {
+        NearCache<String, String> cache = new NearCache<>(10);
+        cache.put("a", "A", cache.getVersion());
+
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(10, cache.getMaxSize());
+    }
+}
@@ -60,6 +60,19 @@ public class ConfigNodeEntity {
     @Lob
     private byte[] content;
 
+    /**
+     * Hash of the content, null for the rows that were not written since the column was introduced
+     */
+    @Basic
+    @Column(name = "content_hash")
+    private String contentHash;
+
+    /**
+     * Revision of the configuration (see {@link ConfigRevisionStore}) committed with the last change of the row, null if not known
+     */
+    @Basic
+    private Long revision;
+
     public long getPk() {
         return pk;
     }
@@ -83,4 +96,20 @@ public class ConfigNodeEntity {
     public void setContent(byte[] content) {
         this.content = content;
     }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public Long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Long revision) {
+        this.revision = revision;
+    }
 }
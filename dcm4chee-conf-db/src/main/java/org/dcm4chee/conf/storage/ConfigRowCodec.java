@@ -0,0 +1,121 @@
+/*
+ * **** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content of the config rows: json, optionally gzip-compressed (see {@link DBStorageBean#COMPRESS_ROWS_PROPERTY})
+ */
+@SuppressWarnings("unchecked")
+final class ConfigRowCodec {
+
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    private ConfigRowCodec() {
+    }
+
+    /**
+     * @return the json of the node, not compressed
+     */
+    static byte[] encode(Map<String, Object> map) {
+        try {
+            return OM.writeValueAsBytes(map);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot serialize node", e);
+        }
+    }
+
+    /**
+     * @param content either plain json or compressed json
+     */
+    static Map<String, Object> decode(byte[] content) {
+        try {
+            if (isCompressed(content))
+                try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+                    return OM.readValue(in, Map.class);
+                }
+
+            return OM.readValue(content, Map.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot deserialize node", e);
+        }
+    }
+
+    /**
+     * The plain rows are json, so they never start with the gzip magic bytes
+     */
+    static boolean isCompressed(byte[] content) {
+        return content.length >= 2 && content[0] == (byte) 0x1f && content[1] == (byte) 0x8b;
+    }
+
+    static byte[] compress(byte[] json) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length / 4 + 64);
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(json);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot compress node", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param json the json of the node, so that the hash does not depend on whether the row is compressed
+     */
+    static String hash(byte[] json) {
+        try {
+            return DatatypeConverter.printHexBinary(MessageDigest.getInstance("SHA-1").digest(json));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -39,10 +39,10 @@
  */
 package org.dcm4chee.conf.storage;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.dcm4che3.conf.core.Nodes;
 import org.dcm4che3.conf.core.api.BatchRunner.Batch;
 import org.dcm4che3.conf.core.api.Path;
+import org.dcm4chee.util.TransactionSynchronization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,11 +50,14 @@ import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
 import javax.persistence.*;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
 
 /**
  * @author Roman K
@@ -64,31 +67,208 @@ public class DBStorageBean {
 
     private static final Logger log = LoggerFactory.getLogger(DBStorageBean.class);
 
-    private final ObjectMapper OM = new ObjectMapper();
-
     @PersistenceContext(unitName = "dcm4chee-conf")
     private EntityManager em;
 
     public static final String LOCK_PATH = "/misc/locking/dblock";
 
+    /**
+     * Row that holds the revision of the configuration (see {@link ConfigRevisionStore}). It is not part of the configuration tree.
+     */
+    public static final String REVISION_PATH = "/misc/locking/revision";
+
+    /**
+     * Max number of rows whose contents are fetched (and held in memory) at once when loading the whole tree
+     */
+    private static final int FULL_TREE_CHUNK_SIZE = 100;
+
+    /**
+     * Number of threads that decode the rows when loading the whole tree (see {@link RowDecodingExecutor}), defaults to the number
+     * of processors, 1 decodes on the calling thread
+     */
+    public static final String DECODING_PARALLELISM_PROPERTY = "org.dcm4che.conf.storage.decodingParallelism";
+
+    /**
+     * If enabled, the rows are written gzip-compressed. The compressed rows are recognized on read, so existing rows keep working,
+     * but all the cluster nodes must be able to read them.
+     */
+    public static final String COMPRESS_ROWS_PROPERTY = "org.dcm4che.conf.storage.compressRows";
+
+    private static final boolean compressRows = Boolean.getBoolean(COMPRESS_ROWS_PROPERTY);
+
     @EJB
     DBStorageBean self;
 
-    public Map<String, Object> getFullTree() {
-        Query query = em.createQuery("SELECT n FROM ConfigNodeEntity n");
-        List<ConfigNodeEntity> resultList = query.getResultList();
+    @Inject
+    private TransactionSynchronization txSync;
+
+    @Inject
+    private RowDecodingExecutor decoder;
 
+    /**
+     * Loads the whole tree, see {@link #streamFullTree}
+     */
+    public Map<String, Object> getFullTree() {
         Map<String, Object> map = new HashMap<String, Object>();
+        streamFullTree((pathItems, node) -> Nodes.replaceNode(map, node, pathItems));
+        return map;
+    }
 
-        for (ConfigNodeEntity configNodeEntity : resultList) {
-            Map loadedNode = configNodeEntity.getContent() == null ?
-                    new HashMap() :
-                    fromBytes(configNodeEntity.getContent());
-            String path = configNodeEntity.getPath();
-            Nodes.replaceNode(map, loadedNode, Path.fromSimpleEscapedPath(path).getPathItems());
+    /**
+     * Passes all the rows to the consumer without keeping them in memory: the paths are queried first, and then the contents are
+     * fetched chunk by chunk (as plain values, so that nothing is kept in the persistence context), so that only the contents of
+     * (at most two) chunks are held besides what the consumer keeps.
+     * <p>
+     * The rows are independent of each other, so they are decoded in parallel (see {@link #DECODING_PARALLELISM_PROPERTY}),
+     * and while a chunk is being decoded, the next one is fetched. Only the consumer must follow the order, it is called on the calling thread
+     * with the rows sorted by the length of their paths, so that a row is passed before the rows that are split out of it.
+     */
+    @SuppressWarnings("unchecked")
+    public void streamFullTree(BiConsumer<List<Object>, Map<String, Object>> rowConsumer) {
+        long time = System.currentTimeMillis();
+
+        Query query = em.createQuery("SELECT n.pk, n.path FROM ConfigNodeEntity n WHERE n.path <> ?1");
+        query.setParameter(1, REVISION_PATH);
+        List<Object[]> rows = new ArrayList<>(query.getResultList());
+
+        // a node must be merged in before the nodes that are split out of it, and its path is always shorter
+        rows.sort(Comparator.comparingInt((Object[] row) -> ((String) row[1]).length()));
+
+        long queried = System.currentTimeMillis();
+
+        List<Future<Map>> decodedChunk = null;
+        List<Future<Map>> nextDecodedChunk = null;
+        try {
+            List<Object[]> chunk = null;
+
+            for (int from = 0; ; from += FULL_TREE_CHUNK_SIZE) {
+
+                // fetch the next chunk (if any) while the previous one is being decoded
+                List<Object[]> nextChunk = null;
+                nextDecodedChunk = null;
+                if (from < rows.size()) {
+                    nextChunk = rows.subList(from, Math.min(from + FULL_TREE_CHUNK_SIZE, rows.size()));
+                    Map<Long, byte[]> contents = getContents(nextChunk.stream().map((row) -> (Long) row[0]).collect(Collectors.toList()));
+
+                    nextDecodedChunk = new ArrayList<>(nextChunk.size());
+                    for (Object[] row : nextChunk) {
+                        byte[] content = contents.get((Long) row[0]);
+                        nextDecodedChunk.add(decoder.submit(() -> decode(content)));
+                    }
+                }
+
+                if (chunk != null)
+                    for (int i = 0; i < chunk.size(); i++)
+                        rowConsumer.accept(Path.fromSimpleEscapedPath((String) chunk.get(i)[1]).getPathItems(), decodedChunk.get(i).get());
+
+                if (nextChunk == null)
+                    break;
+
+                chunk = nextChunk;
+                decodedChunk = nextDecodedChunk;
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading the configuration", e);
+        } finally {
+            // on failure, do not keep the shared pool busy with rows nobody is waiting for
+            cancel(decodedChunk);
+            cancel(nextDecodedChunk);
         }
 
-        return map;
+        log.debug("Loaded {} configuration rows with decoding parallelism {}: querying the paths took {} ms, fetching, decoding and consuming {} ms",
+                rows.size(), decoder.getParallelism(), queried - time, System.currentTimeMillis() - queried);
+    }
+
+    private static void cancel(List<Future<Map>> decodedChunk) {
+        if (decodedChunk != null)
+            decodedChunk.forEach((future) -> future.cancel(true));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, byte[]> getContents(List<Long> pks) {
+        Query query = em.createQuery("SELECT n.pk, n.content FROM ConfigNodeEntity n WHERE n.pk IN (:pks)");
+        query.setParameter("pks", pks);
+
+        Map<Long, byte[]> contents = new HashMap<>();
+        for (Object[] row : (List<Object[]>) query.getResultList())
+            contents.put((Long) row[0], (byte[]) row[1]);
+        return contents;
+    }
+
+    /**
+     * Loads only the rows that make up a node, i.e. the row that stores it and the rows in its subtree
+     *
+     * @param rowPathItems     path of the row that stores the node, or null if the node is above the serialization level
+     * @param subtreePathItems path of the node if rows can be split out below it, otherwise null
+     * @return a tree (from the root) with the loaded rows merged in
+     */
+    public Map<String, Object> getPartialTree(List<Object> rowPathItems, List<Object> subtreePathItems) {
+        return getPartialTrees(Collections.singletonList(rowPathItems), Collections.singletonList(subtreePathItems)).get(0);
+    }
+
+    /**
+     * Loads the rows of several nodes with a single query, see {@link #getPartialTree(List, List)}
+     *
+     * @param rowPaths     for each node, the path of the row that stores it, or null
+     * @param subtreePaths for each node, the path of the node if rows can be split out below it, or null
+     * @return for each node, a tree (from the root) with only the rows of that node merged in
+     */
+    @SuppressWarnings("unchecked")
+    public List<Map<String, Object>> getPartialTrees(List<List<Object>> rowPaths, List<List<Object>> subtreePaths) {
+
+        Set<String> rowPathSet = new HashSet<>();
+        List<String> subtreePrefixes = new ArrayList<>();
+        for (int i = 0; i < rowPaths.size(); i++) {
+            if (rowPaths.get(i) != null)
+                rowPathSet.add(Nodes.toSimpleEscapedPath(rowPaths.get(i)));
+            if (subtreePaths.get(i) != null)
+                subtreePrefixes.add(toPrefix(subtreePaths.get(i)));
+        }
+
+        List<String> conditions = new ArrayList<>();
+        if (!rowPathSet.isEmpty())
+            conditions.add("n.path IN (:rowPaths)");
+        for (int i = 0; i < subtreePrefixes.size(); i++)
+            conditions.add("n.path LIKE :subtreePrefix" + i + " ESCAPE '!'");
+
+        List<Object[]> rows = new ArrayList<>();
+        if (!conditions.isEmpty()) {
+            Query query = em.createQuery("SELECT n.path, n.content FROM ConfigNodeEntity n WHERE n.path <> :revisionPath AND ("
+                    + String.join(" OR ", conditions) + ")");
+            query.setParameter("revisionPath", REVISION_PATH);
+            if (!rowPathSet.isEmpty())
+                query.setParameter("rowPaths", rowPathSet);
+            for (int i = 0; i < subtreePrefixes.size(); i++)
+                query.setParameter("subtreePrefix" + i, escapeForLike(subtreePrefixes.get(i)) + "%");
+            rows.addAll(query.getResultList());
+        }
+
+        // a node must be merged in before the nodes that are split out of it, and its path is always shorter
+        rows.sort(Comparator.comparingInt((Object[] row) -> ((String) row[0]).length()));
+
+        // the trees are handed out separately, so a row that belongs to several nodes is decoded for each of them
+        List<Map<String, Object>> trees = new ArrayList<>(rowPaths.size());
+        for (int i = 0; i < rowPaths.size(); i++) {
+            String rowPath = rowPaths.get(i) != null ? Nodes.toSimpleEscapedPath(rowPaths.get(i)) : null;
+            String subtreePrefix = subtreePaths.get(i) != null ? toPrefix(subtreePaths.get(i)) : null;
+
+            Map<String, Object> map = new HashMap<String, Object>();
+            for (Object[] row : rows) {
+                String path = (String) row[0];
+                if (path.equals(rowPath) || (subtreePrefix != null && path.startsWith(subtreePrefix)))
+                    Nodes.replaceNode(map, decode((byte[]) row[1]), Path.fromSimpleEscapedPath(path).getPathItems());
+            }
+            trees.add(map);
+        }
+        return trees;
+    }
+
+    private static String toPrefix(List<Object> pathItems) {
+        String path = Nodes.toSimpleEscapedPath(pathItems);
+        return path.endsWith("/") ? path : path + "/";
     }
 
     public boolean isEmpty() {
@@ -99,16 +279,25 @@ public class DBStorageBean {
 
     @TransactionAttribute(TransactionAttributeType.MANDATORY)
     public void lock() {
-        getLockOnExistingLockEntity();
+        getLockOnExistingLockEntity(LockModeType.PESSIMISTIC_WRITE);
+    }
+
+    /**
+     * Lock for the writers restricted to a single unit, see {@link ConfigWriteLockScope}. Excludes the global writers, but not
+     * the other unit writers. Note that some databases (e.g. Oracle) do not support shared row locks, then this is the same as {@link #lock()}.
+     */
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public void lockShared() {
+        getLockOnExistingLockEntity(LockModeType.PESSIMISTIC_READ);
     }
 
-    private void getLockOnExistingLockEntity() {
+    private void getLockOnExistingLockEntity(LockModeType lockMode) {
         Query query = em.createQuery("SELECT n FROM ConfigNodeEntity n WHERE n.path=?1");
         query.setParameter(1, LOCK_PATH);
         ConfigNodeEntity singleResult = (ConfigNodeEntity) query.getSingleResult();
-        log.debug("Trying to aquire a pessimistic lock on " + LOCK_PATH);
-        em.lock(singleResult, LockModeType.PESSIMISTIC_WRITE);
-        log.debug("Aquired a pessimistic lock on " + LOCK_PATH);
+        log.debug("Trying to aquire a pessimistic lock ({}) on {}", lockMode, LOCK_PATH);
+        em.lock(singleResult, lockMode);
+        log.debug("Aquired a pessimistic lock ({}) on {}", lockMode, LOCK_PATH);
     }
 
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
@@ -132,6 +321,22 @@ public class DBStorageBean {
         } else {
             log.debug("Locking row already exists");
         }
+
+        // created upfront as well, so that the writers always find a row to lock when incrementing the revision
+        query = em.createQuery("SELECT count (n) FROM ConfigNodeEntity n WHERE n.path=?1");
+        query.setParameter(1, REVISION_PATH);
+        if ((Long) query.getSingleResult() == 0) {
+            log.debug("Revision row does not exist, inserting...");
+            ConfigNodeEntity entity = new ConfigNodeEntity();
+            entity.setPath(REVISION_PATH);
+            entity.setContent(ConfigRowCodec.encode(Collections.<String, Object>singletonMap("revision", 0L)));
+            try {
+                em.persist(entity);
+                log.debug("Revision row inserted");
+            } catch (Exception e) {
+                throw new UnableToPersistLockingRowException(e);
+            }
+        }
     }
 
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
@@ -154,7 +359,7 @@ public class DBStorageBean {
         ConfigNodeEntity node = getConfigNodeEntityForDBPath(pathItemsForDB);
         Object loadedNode = node.getContent() == null ?
                 new HashMap() :
-                fromBytes(node.getContent());
+                ConfigRowCodec.decode(node.getContent());
 
         return loadedNode;
     }
@@ -166,10 +371,12 @@ public class DBStorageBean {
 
             Query query;
 
-            // if less than level, allow bulk delete of x/y/*
+            // if less than level, allow bulk delete of x/y/* (but keep the locking and the revision rows)
             if (pathItemsForDB.size() < SemiSerializedDBConfigStorage.level) {
-                query = em.createQuery("DELETE FROM ConfigNodeEntity n WHERE n.path like ?1");
+                query = em.createQuery("DELETE FROM ConfigNodeEntity n WHERE n.path like ?1 AND n.path <> ?2 AND n.path <> ?3");
                 query.setParameter(1, Nodes.toSimpleEscapedPath(pathItemsForDB) + "%");
+                query.setParameter(2, LOCK_PATH);
+                query.setParameter(3, REVISION_PATH);
             }
             // otherwise must be equals
             else {
@@ -180,15 +387,88 @@ public class DBStorageBean {
         } else
             try {
                 ConfigNodeEntity node = getConfigNodeEntityForDBPath(pathItemsForDB);
-                Map<String, Object> map = fromBytes(node.getContent());
+                Map<String, Object> map = ConfigRowCodec.decode(node.getContent());
                 Nodes.removeNode(map, restPathItems);
-                node.setContent(toBytes(map));
-                em.merge(node);
+                if (setContent(node, ConfigRowCodec.encode(map)))
+                    em.merge(node);
             } catch (NoResultException e) {
                 return;
             }
     }
 
+    /**
+     * Removes all the rows in the subtree of the given path, but not the row of the path itself (nor the locking and the revision rows)
+     */
+    public void removeNodesBelow(List<Object> pathItemsForDB) {
+        Query query = em.createQuery("DELETE FROM ConfigNodeEntity n WHERE n.path LIKE ?1 ESCAPE '!' AND n.path <> ?2 AND n.path <> ?3");
+        query.setParameter(1, escapeForLike(Nodes.toSimpleEscapedPath(pathItemsForDB) + "/") + "%");
+        query.setParameter(2, LOCK_PATH);
+        query.setParameter(3, REVISION_PATH);
+        query.executeUpdate();
+    }
+
+    /**
+     * Keeps the revision row as well
+     */
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public void removeAllNodesExceptLockingRow() {
+        Query query = em.createQuery("DELETE FROM ConfigNodeEntity n WHERE n.path <> ?1 AND n.path <> ?2");
+        query.setParameter(1, LOCK_PATH);
+        query.setParameter(2, REVISION_PATH);
+        query.executeUpdate();
+    }
+
+    public long getRevision() {
+        ConfigNodeEntity node = getRevisionEntity(LockModeType.NONE);
+        return node == null ? 0 : toRevision(node);
+    }
+
+    /**
+     * The revision row is locked for the rest of the transaction, so the writers get consecutive revisions even if they only hold
+     * the shared lock (see {@link #lockShared()}) and some other lock that is released before the DB commits.
+     * The row is created on first use if {@link #createLockingRowIfnotExists()} did not create it.
+     * The rows changed in the ongoing transaction get the new revision.
+     */
+    @TransactionAttribute(TransactionAttributeType.MANDATORY)
+    public long incrementRevision() {
+        ConfigNodeEntity node = getRevisionEntity(LockModeType.PESSIMISTIC_WRITE);
+
+        long revision;
+        if (node == null) {
+            revision = 1;
+            node = new ConfigNodeEntity();
+            node.setPath(REVISION_PATH);
+            node.setContent(ConfigRowCodec.encode(Collections.<String, Object>singletonMap("revision", revision)));
+            em.persist(node);
+        } else {
+            revision = toRevision(node) + 1;
+            node.setContent(ConfigRowCodec.encode(Collections.<String, Object>singletonMap("revision", revision)));
+            em.merge(node);
+        }
+
+        for (ConfigNodeEntity changedRow : getChangedRows())
+            changedRow.setRevision(revision);
+
+        return revision;
+    }
+
+    private ConfigNodeEntity getRevisionEntity(LockModeType lockMode) {
+        Query query = em.createQuery("SELECT n FROM ConfigNodeEntity n WHERE n.path=?1");
+        query.setParameter(1, REVISION_PATH);
+        query.setLockMode(lockMode);
+        List<ConfigNodeEntity> resultList = query.getResultList();
+        return resultList.isEmpty() ? null : resultList.get(0);
+    }
+
+    private long toRevision(ConfigNodeEntity node) {
+        Object revision = ConfigRowCodec.decode(node.getContent()).get("revision");
+        return revision == null ? 0 : ((Number) revision).longValue();
+    }
+
+    private static String escapeForLike(String s) {
+        return s.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+
     public void modifyNode(List<Object> pathItemsForDB, List<Object> restPathItems, Map<String, Object> configNode) {
         String dbPath = Nodes.toSimpleEscapedPath(pathItemsForDB);
 
@@ -201,7 +481,7 @@ public class DBStorageBean {
             node = new ConfigNodeEntity();
             node.setPath(dbPath);
             Map<String, Object> map = Nodes.replaceNode(new HashMap<>(), configNode, restPathItems);
-            node.setContent(toBytes(map));
+            setContent(node, ConfigRowCodec.encode(map));
             em.persist(node);
 
             return;
@@ -210,36 +490,99 @@ public class DBStorageBean {
         }
 
         // merge
-        Map<String, Object> map = Nodes.replaceNode(fromBytes(node.getContent()), configNode, restPathItems);
-        node.setContent(toBytes(map));
-        em.merge(node);
+        Map<String, Object> map = Nodes.replaceNode(ConfigRowCodec.decode(node.getContent()), configNode, restPathItems);
+        if (setContent(node, ConfigRowCodec.encode(map)))
+            em.merge(node);
     }
 
-    public boolean nodeExists(List<Object> pathItemsForDB, List<Object> restPathItems) {
-        try {
-            ConfigNodeEntity node = getConfigNodeEntityForDBPath(pathItemsForDB);
-            return Nodes.nodeExists(fromBytes(node.getContent()), restPathItems);
-        } catch (NoResultException e) {
+    /**
+     * Sets the content of a row (and its hash) unless it is the same, and marks the row as changed in the ongoing transaction,
+     * so that it gets the revision of the transaction (see {@link #incrementRevision()}).
+     * The hash is calculated from the json, so it does not depend on whether the row is compressed.
+     *
+     * @return false if the content is the same
+     */
+    private boolean setContent(ConfigNodeEntity node, byte[] json) {
+        String hash = ConfigRowCodec.hash(json);
+        if (hash.equals(node.getContentHash()))
             return false;
-        }
+
+        node.setContent(compressRows ? ConfigRowCodec.compress(json) : json);
+        node.setContentHash(hash);
+
+        // not known until the transaction increments the revision
+        node.setRevision(null);
+        Set<ConfigNodeEntity> changedRows = getChangedRows();
+        if (changedRows != null)
+            changedRows.add(node);
+        return true;
     }
 
-    private Map<String, Object> fromBytes(byte[] content) {
-        try {
-            return OM.readValue(content, Map.class);
-        } catch (IOException e) {
-            throw new RuntimeException("Cannot deserialize node", e);
+    @SuppressWarnings("unchecked")
+    private Set<ConfigNodeEntity> getChangedRows() {
+        if (txSync.getStatus() == Status.STATUS_NO_TRANSACTION)
+            return null;
+
+        TransactionSynchronizationRegistry registry = txSync.getSynchronizationRegistry();
+        Set<ConfigNodeEntity> changedRows = (Set<ConfigNodeEntity>) registry.getResource(ConfigNodeEntity.class);
+        if (changedRows == null) {
+            changedRows = new HashSet<>();
+            registry.putResource(ConfigNodeEntity.class, changedRows);
         }
+        return changedRows;
+    }
+
+    /**
+     * Allows to find out which rows differ or were removed without loading the contents
+     *
+     * @return content hash by path of all the rows, null for the rows that were not written since the hashes were introduced
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, String> getContentHashes() {
+        Query query = em.createQuery("SELECT n.path, n.contentHash FROM ConfigNodeEntity n WHERE n.path <> ?1");
+        query.setParameter(1, REVISION_PATH);
+
+        Map<String, String> hashes = new HashMap<>();
+        for (Object[] row : (List<Object[]>) query.getResultList())
+            hashes.put((String) row[0], (String) row[1]);
+        return hashes;
+    }
+
+    /**
+     * The rows whose revision is not known (e.g. written before the revisions were introduced) are included as well.
+     * The rows removed since are not reported, see {@link #getContentHashes()}.
+     *
+     * @return content by path of the rows changed by the modifications committed after the given revision, in the order they must be merged in
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Map<String, Object>> getNodesChangedSince(long revision) {
+        Query query = em.createQuery("SELECT n.path, n.content FROM ConfigNodeEntity n WHERE n.path <> ?1 AND (n.revision > ?2 OR n.revision IS NULL)");
+        query.setParameter(1, REVISION_PATH);
+        query.setParameter(2, revision);
+        List<Object[]> rows = new ArrayList<>(query.getResultList());
+
+        // a node must be merged in before the nodes that are split out of it, and its path is always shorter
+        rows.sort(Comparator.comparingInt((Object[] row) -> ((String) row[0]).length()));
+
+        Map<String, Map<String, Object>> nodes = new LinkedHashMap<>();
+        for (Object[] row : rows)
+            nodes.put((String) row[0], decode((byte[]) row[1]));
+        return nodes;
     }
 
-    private byte[] toBytes(Map<String, Object> map) {
+    public boolean nodeExists(List<Object> pathItemsForDB, List<Object> restPathItems) {
         try {
-            return OM.writeValueAsBytes(map);
-        } catch (IOException e) {
-            throw new RuntimeException("Cannot serialize node", e);
+            ConfigNodeEntity node = getConfigNodeEntityForDBPath(pathItemsForDB);
+            return Nodes.nodeExists(ConfigRowCodec.decode(node.getContent()), restPathItems);
+        } catch (NoResultException e) {
+            return false;
         }
     }
 
+    private Map decode(byte[] content) {
+        return content == null ? new HashMap() : ConfigRowCodec.decode(content);
+    }
+
     private ConfigNodeEntity getConfigNodeEntityForDBPath(List<Object> pathItemsForDB) {
         String dbPath = Nodes.toSimpleEscapedPath(pathItemsForDB);
 
@@ -0,0 +1,136 @@
+/*
+ * **** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool that decodes the rows when the whole tree is loaded (see {@link DBStorageBean#streamFullTree}), shared by all the
+ * storage beans and shut down with the application. The threads are only kept while there is something to decode.
+ * <p>
+ * The threads are created by the container's default managed thread factory if there is one (Java EE 7 and later). Otherwise they
+ * are plain threads: the decoding only turns bytes into maps, i.e. it does not touch transactions, security or any other container
+ * context, and the threads get the class loader of the deployment as their context class loader. They are daemon threads and
+ * stopped in {@link #destroy()} when the application is undeployed, so they neither outlive it nor keep its class loader.
+ */
+@ApplicationScoped
+public class RowDecodingExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(RowDecodingExecutor.class);
+
+    private static final String MANAGED_THREAD_FACTORY_JNDI_NAME = "java:comp/DefaultManagedThreadFactory";
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private int parallelism;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        parallelism = Integer.getInteger(DBStorageBean.DECODING_PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+        if (parallelism <= 1)
+            return;
+
+        executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), getThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory getThreadFactory() {
+        try {
+            // ManagedThreadFactory is a ThreadFactory, so the Java EE 7 API is not needed to use it
+            ThreadFactory managedThreadFactory = (ThreadFactory) new InitialContext().lookup(MANAGED_THREAD_FACTORY_JNDI_NAME);
+            log.debug("Decoding the configuration rows with threads from {}", MANAGED_THREAD_FACTORY_JNDI_NAME);
+            return managedThreadFactory;
+        } catch (NamingException | ClassCastException e) {
+            log.debug("No managed thread factory available, decoding the configuration rows with unmanaged threads", e);
+        }
+
+        ClassLoader classLoader = RowDecodingExecutor.class.getClassLoader();
+        AtomicInteger threadCount = new AtomicInteger();
+        return (r) -> {
+            Thread thread = new Thread(r, "config-row-decoder-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        };
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor == null)
+            return;
+
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                log.warn("Configuration row decoding threads did not stop within {} s", SHUTDOWN_TIMEOUT_SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Runs the task on the pool, or right away on the calling thread if decoding in parallel is disabled
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        if (executor != null)
+            return executor.submit(task);
+
+        FutureTask<T> future = new FutureTask<>(task);
+        future.run();
+        return future;
+    }
+}
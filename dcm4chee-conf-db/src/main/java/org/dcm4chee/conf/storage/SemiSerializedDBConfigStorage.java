@@ -39,36 +39,46 @@
  */
 package org.dcm4chee.conf.storage;
 
-import org.dcm4che3.conf.core.api.Configuration;
 import org.dcm4che3.conf.core.api.ConfigurationException;
 import org.dcm4che3.conf.core.Nodes;
 import org.dcm4che3.conf.core.api.Path;
 import org.dcm4che3.conf.core.util.SplittedPath;
 import org.dcm4che3.conf.dicom.DicomPath;
+import org.dcm4chee.util.TransactionSynchronization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.ejb.EJB;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 /**
  * @author Roman K
  */
 @ApplicationScoped
 @ConfigurationStorage(value = "db_blobs")
-public class SemiSerializedDBConfigStorage implements Configuration {
+public class SemiSerializedDBConfigStorage implements MultiNodeConfiguration, StreamingConfiguration, ConfigRevisionStore {
 
     public static final Logger log = LoggerFactory.getLogger(SemiSerializedDBConfigStorage.class);
 
     /**
      * The level from which on all the nodes are serialized
      */
-    public static final int level = 3;
+    public static final int level = ConfigNodeSplitPolicy.BASE_LEVEL;
 
     @EJB
     private DBStorageBean db;
+
+    @Inject
+    private TransactionSynchronization txSync;
+
+    private final ConfigNodeSplitPolicy splitPolicy = ConfigNodeSplitPolicy.fromSystemProperties();
+
+    private final AtomicBoolean relayoutPending = new AtomicBoolean(Boolean.getBoolean(ConfigNodeSplitPolicy.RELAYOUT_ON_BOOTSTRAP_PROPERTY));
     
     @PostConstruct
     public void init() {
@@ -97,13 +107,86 @@ public class SemiSerializedDBConfigStorage implements Configuration {
         }
     }
 
+    /**
+     * Passes the rows as they are decoded, see {@link DBStorageBean#streamFullTree}
+     */
+    @Override
+    public void streamConfigurationRoot(BiConsumer<List<Object>, Map<String, Object>> nodeConsumer) throws ConfigurationException {
+        try {
+            db.streamFullTree(nodeConsumer);
+        } catch (ConfigurationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ConfigurationException("Unable to load configuration from the DB", e);
+        }
+    }
 
+    /**
+     * Only loads the rows the node consists of: the row that stores it (with the node navigated to within the row if it is below
+     * the level of the row), and the rows split out below it, e.g. all the rows of the devices for a node above the serialization level
+     */
     @Override
     public Object getConfigurationNode(Path path, Class configurableClass) throws ConfigurationException {
 
-        // since some paths are not trivial, e.g. references, just use the root because it will be cached
-        // [speedup-spot] still could be optimized for many cases
-        return Nodes.getNode(getConfigurationRoot(), path.getPathItems());
+        List<Object> pathItems = path.getPathItems();
+        if (pathItems.isEmpty())
+            return getConfigurationRoot();
+
+        try {
+            return Nodes.getNode(db.getPartialTree(getRowPathItems(pathItems), getSubtreePathItems(pathItems)), pathItems);
+        } catch (Exception e) {
+            throw new ConfigurationException("Unable to load configuration node " + path + " from the DB", e);
+        }
+    }
+
+    /**
+     * Loads the rows of all the (non-root) nodes with one query
+     */
+    @Override
+    public Map<Path, Object> getConfigurationNodes(List<Path> paths, Class configurableClass) throws ConfigurationException {
+
+        List<Path> nonRootPaths = new ArrayList<>();
+        List<List<Object>> rowPaths = new ArrayList<>();
+        List<List<Object>> subtreePaths = new ArrayList<>();
+        for (Path path : paths)
+            if (!path.getPathItems().isEmpty()) {
+                nonRootPaths.add(path);
+                rowPaths.add(getRowPathItems(path.getPathItems()));
+                subtreePaths.add(getSubtreePathItems(path.getPathItems()));
+            }
+
+        List<Map<String, Object>> trees;
+        try {
+            trees = db.getPartialTrees(rowPaths, subtreePaths);
+        } catch (Exception e) {
+            throw new ConfigurationException("Unable to load configuration nodes " + nonRootPaths + " from the DB", e);
+        }
+
+        Map<Path, Object> nodes = new LinkedHashMap<>();
+        for (Path path : paths)
+            nodes.put(path, path.getPathItems().isEmpty() ? getConfigurationRoot() : null);
+        for (int i = 0; i < nonRootPaths.size(); i++)
+            nodes.put(nonRootPaths.get(i), Nodes.getNode(trees.get(i), nonRootPaths.get(i).getPathItems()));
+        return nodes;
+    }
+
+    /**
+     * @return the path of the row that stores the node, or null if the node is above the serialization level
+     */
+    private List<Object> getRowPathItems(List<Object> pathItems) {
+        if (pathItems.size() < level)
+            return null;
+
+        // a split property itself is only a placeholder in its level node
+        int unitLevel = splitPolicy.isSplitProperty(pathItems) ? level : splitPolicy.getLevel(pathItems);
+        return new SplittedPath(pathItems, unitLevel).getOuterPathItems();
+    }
+
+    /**
+     * @return the path of the node if rows can be split out below it, otherwise null
+     */
+    private List<Object> getSubtreePathItems(List<Object> pathItems) {
+        return pathItems.size() < level || isSplitIntoUnits(pathItems) ? pathItems : null;
     }
 
     @Override
@@ -111,7 +194,11 @@ public class SemiSerializedDBConfigStorage implements Configuration {
         if (path.equals(DicomPath.ConfigRoot.path()))
             return !db.isEmpty();
 
-        SplittedPath splittedPath = new SplittedPath(path.getPathItems(), level);
+        List<Object> pathItems = path.getPathItems();
+
+        // a split property itself is only a placeholder in its level node
+        int unitLevel = splitPolicy.isSplitProperty(pathItems) ? level : splitPolicy.getLevel(pathItems);
+        SplittedPath splittedPath = new SplittedPath(pathItems, unitLevel);
 
         // no need to store those
         if (splittedPath.getTotalDepth() <= level) throw new RuntimeException("Unexpected path " + path);
@@ -123,16 +210,39 @@ public class SemiSerializedDBConfigStorage implements Configuration {
     @Override
     public void persistNode(Path path, Map<String, Object> configNode, Class configurableClass) throws ConfigurationException {
 
-        SplittedPath splittedPath = new SplittedPath(path.getPathItems(), level);
+        List<Object> pathItems = path.getPathItems();
+        SplittedPath splittedPath = new SplittedPath(pathItems, splitPolicy.getLevel(pathItems));
         int i = splittedPath.getTotalDepth();
         List<Object> pathItemsForDB = splittedPath.getOuterPathItems();
         List<Object> restPathItems = splittedPath.getInnerPathitems();
 
         if (i < level) {
             removeNode(path);
-            splitTreeAndPersist(pathItemsForDB, configNode);
+            splitTreeAndPersist(new ArrayList<>(pathItemsForDB), configNode);
+        } else if (isSplitIntoUnits(pathItems)) {
+
+            // the node is replaced together with the units split out of it
+            db.removeNodesBelow(pathItems);
+            if (splitPolicy.isSplitProperty(pathItems))
+                db.modifyNode(pathItems.subList(0, level), pathItems.subList(level, i), new HashMap<>());
+
+            splitPolicy.split(pathItems, configNode, (unitPathItems, unit) -> db.modifyNode(unitPathItems, Collections.emptyList(), unit));
         } else
             db.modifyNode(pathItemsForDB, restPathItems, configNode);
+    }
+
+    @Override
+    public void persistNodes(Map<Path, Map<String, Object>> configNodes, Class configurableClass) throws ConfigurationException {
+        for (Map.Entry<Path, Map<String, Object>> entry : configNodes.entrySet())
+            persistNode(entry.getKey(), entry.getValue(), configurableClass);
+    }
+
+    /**
+     * @return true if the node is not stored in a single row, but has units split out of it (see {@link ConfigNodeSplitPolicy})
+     */
+    private boolean isSplitIntoUnits(List<Object> pathItems) {
+        return splitPolicy.isSplitProperty(pathItems)
+                || (pathItems.size() == level && !splitPolicy.getSplitProperties(pathItems).isEmpty());
 
     }
 
@@ -140,8 +250,8 @@ public class SemiSerializedDBConfigStorage implements Configuration {
 
         if (dbPath.size() == level) {
 
-            // if reached the level, just modify node
-            db.modifyNode(dbPath, Collections.emptyList(), configNode);
+            // if reached the level, just modify node (and the ones split out of it)
+            splitPolicy.split(dbPath, configNode, (unitPathItems, unit) -> db.modifyNode(unitPathItems, Collections.emptyList(), unit));
         } else if (dbPath.size() < level) {
 
             // if not yet reached the level, go deeper for each of this node's children
@@ -164,15 +274,66 @@ public class SemiSerializedDBConfigStorage implements Configuration {
 
     @Override
     public void refreshNode(Path path) throws ConfigurationException {
-        //noop
+
+        // happens on bootstrap, under the global lock
+        if (path.getPathItems().isEmpty() && relayoutPending.compareAndSet(true, false))
+            relayout();
+    }
+
+    /**
+     * Re-persists all the rows according to the current split rules, e.g. after the rules were changed
+     */
+    private void relayout() {
+        long time = System.currentTimeMillis();
+        log.info("Re-laying out the configuration rows according to the split rules '{}' ...",
+                System.getProperty(ConfigNodeSplitPolicy.SPLIT_PROPERTIES_PROPERTY, ""));
+
+        Map<String, Object> root = getConfigurationRoot();
+        db.removeAllNodesExceptLockingRow();
+        splitTreeAndPersist(new ArrayList<>(), root);
+
+        log.info("Re-laid out the configuration rows in {} ms", System.currentTimeMillis() - time);
     }
 
     @Override
     public void removeNode(Path path) throws ConfigurationException {
-        SplittedPath splittedPath = new SplittedPath(path.getPathItems(), level);
+        List<Object> pathItems = path.getPathItems();
+
+        if (isSplitIntoUnits(pathItems))
+            db.removeNodesBelow(pathItems);
+
+        // a split property itself is only a placeholder in its level node
+        int unitLevel = splitPolicy.isSplitProperty(pathItems) ? level : splitPolicy.getLevel(pathItems);
+        SplittedPath splittedPath = new SplittedPath(pathItems, unitLevel);
         db.removeNode(splittedPath.getOuterPathItems(), splittedPath.getInnerPathitems());
     }
 
+    @Override
+    public long getRevision() {
+        return db.getRevision();
+    }
+
+    @Override
+    public long incrementRevision() {
+        return db.incrementRevision();
+    }
+
+    /**
+     * @see DBStorageBean#getContentHashes()
+     */
+    public Map<String, String> getRowContentHashes() {
+        return db.getContentHashes();
+    }
+
+    /**
+     * Allows e.g. to sync a copy of the configuration that is known to correspond to a certain revision without reloading all the rows
+     *
+     * @see DBStorageBean#getNodesChangedSince(long)
+     */
+    public Map<String, Map<String, Object>> getRowsChangedSince(long revision) {
+        return db.getNodesChangedSince(revision);
+    }
+
     @Override
     public Path getPathByUUID(String uuid) {
         throw new ConfigurationException("Unexpected error - uuid index is missing");
@@ -186,7 +347,10 @@ public class SemiSerializedDBConfigStorage implements Configuration {
 
     @Override
     public void lock() {
-        db.lock();
+        if (ConfigWriteLockScope.get(txSync) == null)
+            db.lock();
+        else
+            db.lockShared();
     }
     
     @Override
@@ -0,0 +1,107 @@
+/*
+ * **** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ConfigRowCodecTest {
+
+    /**
+     * Rows written before the compression was introduced, or with the compression disabled
+     */
+    @Test
+    public void testDecodeLegacyRow() {
+        byte[] legacy = "{\"dicomDeviceName\":\"dev\",\"dicomInstalled\":true,\"dicomNetworkAE\":{\"AE\":{\"dicomAETitle\":\"AE\"}}}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(ConfigRowCodec.isCompressed(legacy));
+
+        Map<String, Object> node = ConfigRowCodec.decode(legacy);
+        assertEquals("dev", node.get("dicomDeviceName"));
+        assertEquals(true, node.get("dicomInstalled"));
+        assertEquals(Collections.singletonMap("AE", Collections.singletonMap("dicomAETitle", "AE")), node.get("dicomNetworkAE"));
+    }
+
+    @Test
+    public void testPlainRoundtrip() {
+        Map<String, Object> node = ConfigRowCompressionBenchmark.syntheticDeviceRow(2, 3);
+        byte[] json = ConfigRowCodec.encode(node);
+
+        assertFalse(ConfigRowCodec.isCompressed(json));
+        assertEquals(node, ConfigRowCodec.decode(json));
+    }
+
+    @Test
+    public void testCompressedRoundtrip() {
+        Map<String, Object> node = ConfigRowCompressionBenchmark.syntheticDeviceRow(2, 3);
+        byte[] compressed = ConfigRowCodec.compress(ConfigRowCodec.encode(node));
+
+        assertTrue(ConfigRowCodec.isCompressed(compressed));
+        assertEquals(node, ConfigRowCodec.decode(compressed));
+    }
+
+    @Test
+    public void testEmptyNode() {
+        assertEquals(new HashMap<>(), ConfigRowCodec.decode(ConfigRowCodec.encode(new HashMap<>())));
+        assertEquals(new HashMap<>(), ConfigRowCodec.decode(ConfigRowCodec.compress(ConfigRowCodec.encode(new HashMap<>()))));
+    }
+
+    @Test
+    public void testHashIsStable() {
+        Map<String, Object> node = ConfigRowCompressionBenchmark.syntheticDeviceRow(1, 1);
+
+        assertEquals(ConfigRowCodec.hash(ConfigRowCodec.encode(node)), ConfigRowCodec.hash(ConfigRowCodec.encode(node)));
+
+        node.put("dicomDescription", "changed");
+        assertNotEquals(ConfigRowCodec.hash(ConfigRowCodec.encode(ConfigRowCompressionBenchmark.syntheticDeviceRow(1, 1))),
+                ConfigRowCodec.hash(ConfigRowCodec.encode(node)));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDecodeCorruptCompressedRow() {
+        byte[] compressed = ConfigRowCodec.compress(ConfigRowCodec.encode(ConfigRowCompressionBenchmark.syntheticDeviceRow(1, 1)));
+        ConfigRowCodec.decode(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+}
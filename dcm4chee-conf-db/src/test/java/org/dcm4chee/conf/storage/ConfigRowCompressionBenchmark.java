@@ -0,0 +1,138 @@
+/*
+ * **** BEGIN LICENSE BLOCK *****
+ *  Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ *  The contents of this file are subject to the Mozilla Public License Version
+ *  1.1 (the "License"); you may not use this file except in compliance with
+ *  the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ *  The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ *  Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ *  The Initial Developer of the Original Code is
+ *  Agfa Healthcare.
+ *  Portions created by the Initial Developer are Copyright (C) 2015
+ *  the Initial Developer. All Rights Reserved.
+ *
+ *  Contributor(s):
+ *  See @authors listed below
+ *
+ *  Alternatively, the contents of this file may be used under the terms of
+ *  either the GNU General Public License Version 2 or later (the "GPL"), or
+ *  the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ *  in which case the provisions of the GPL or the LGPL are applicable instead
+ *  of those above. If you wish to allow use of your version of this file only
+ *  under the terms of either the GPL or the LGPL, and not to allow others to
+ *  use your version of this file under the terms of the MPL, indicate your
+ *  decision by deleting the provisions above and replace them with the notice
+ *  and other provisions required by the GPL or the LGPL. If you do not delete
+ *  the provisions above, a recipient may use your version of this file under
+ *  the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ *  ***** END LICENSE BLOCK *****
+ */
+package org.dcm4chee.conf.storage;
+
+import java.util.*;
+
+/**
+ * Compares plain and compressed rows (see {@link DBStorageBean#COMPRESS_ROWS_PROPERTY}): the size of the row contents, i.e. what is stored
+ * in the table and transferred from the DB, and the time to decode all the rows, i.e. the CPU part of loading the whole tree.
+ * Not a unit test, run with
+ * <pre>java -cp ... org.dcm4chee.conf.storage.ConfigRowCompressionBenchmark [rows] [aes] [transferCapabilities]</pre>
+ * The synthetic rows are more repetitive than a real configuration, so expect lower compression ratios in practice.
+ */
+public class ConfigRowCompressionBenchmark {
+
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        int rowCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int aes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int tcs = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+        List<byte[]> plain = new ArrayList<>(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            Map<String, Object> row = syntheticDeviceRow(aes, tcs);
+            row.put("dicomDeviceName", "device" + i);
+            plain.add(ConfigRowCodec.encode(row));
+        }
+
+        long time = System.nanoTime();
+        List<byte[]> compressed = new ArrayList<>(rowCount);
+        for (byte[] json : plain)
+            compressed.add(ConfigRowCodec.compress(json));
+        long compressNanos = System.nanoTime() - time;
+
+        long plainBytes = plain.stream().mapToLong((c) -> c.length).sum();
+        long compressedBytes = compressed.stream().mapToLong((c) -> c.length).sum();
+
+        // warm-up
+        decodeAll(plain);
+        decodeAll(compressed);
+
+        System.out.printf("%d device rows with %d AEs x %d transfer capabilities%n", rowCount, aes, tcs);
+        System.out.printf("content: plain %d KB, compressed %d KB (%.1fx), compressing took %d ms%n",
+                plainBytes / 1024, compressedBytes / 1024, (double) plainBytes / compressedBytes, compressNanos / 1000000);
+        System.out.printf("decoding all rows: plain %.1f ms, compressed %.1f ms%n", decodeAll(plain), decodeAll(compressed));
+    }
+
+    /**
+     * @return average time in ms
+     */
+    private static double decodeAll(List<byte[]> contents) {
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            for (byte[] content : contents)
+                ConfigRowCodec.decode(content);
+        return (System.nanoTime() - time) / 1e6 / ITERATIONS;
+    }
+
+    /**
+     * @return a node that looks like the row of a device with 3 connections and the given number of network AEs and transfer capabilities per AE
+     */
+    static Map<String, Object> syntheticDeviceRow(int aes, int transferCapabilities) {
+        Map<String, Object> device = new HashMap<>();
+        device.put("dicomDeviceName", "device");
+        device.put("_.uuid", UUID.randomUUID().toString());
+        device.put("dicomInstalled", true);
+
+        List<Object> connections = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> connection = new HashMap<>();
+            connection.put("cn", "conn" + i);
+            connection.put("dicomHostname", "host" + i + ".example.com");
+            connection.put("dicomPort", 11112 + i);
+            connections.add(connection);
+        }
+        device.put("dicomConnection", connections);
+
+        Map<String, Object> networkAEs = new HashMap<>();
+        for (int i = 0; i < aes; i++) {
+            Map<String, Object> ae = new HashMap<>();
+            ae.put("dicomAETitle", "AE" + i);
+            ae.put("dicomAssociationInitiator", true);
+            ae.put("dicomAssociationAcceptor", true);
+
+            Map<String, Object> tcs = new HashMap<>();
+            for (int j = 0; j < transferCapabilities; j++) {
+                Map<String, Object> tc = new HashMap<>();
+                tc.put("cn", "TC" + j);
+                tc.put("dicomSOPClass", "1.2.840.10008.5.1.4.1.1." + j);
+                tc.put("dicomTransferRole", j % 2 == 0 ? "SCP" : "SCU");
+                tc.put("dicomTransferSyntax", Arrays.asList("1.2.840.10008.1.2", "1.2.840.10008.1.2.1", "1.2.840.10008.1.2.4.70"));
+                tcs.put("TC" + j, tc);
+            }
+            ae.put("dcmTransferCapability", tcs);
+            networkAEs.put("AE" + i, ae);
+        }
+        device.put("dicomNetworkAE", networkAEs);
+        return device;
+    }
+}
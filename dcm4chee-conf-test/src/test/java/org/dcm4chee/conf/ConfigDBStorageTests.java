@@ -1,17 +1,37 @@
 package org.dcm4chee.conf;
 
 import org.dcm4che3.conf.api.internal.DicomConfigurationManager;
+import org.dcm4che3.conf.core.Nodes;
 import org.dcm4che3.conf.core.api.Configuration;
 import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4che3.conf.core.api.Path;
 import org.dcm4che3.conf.dicom.CommonDicomConfigurationWithHL7;
+import org.dcm4che3.conf.dicom.DicomPath;
+import org.dcm4chee.conf.storage.ConfigNodeSplitPolicy;
+import org.dcm4chee.conf.storage.ConfigRevisionStore;
+import org.dcm4chee.conf.storage.ConfigWriteLockScope;
 import org.dcm4chee.conf.storage.ConfigurationStorage;
+import org.dcm4chee.conf.storage.MultiNodeConfiguration;
+import org.dcm4chee.conf.storage.SemiSerializedDBConfigStorage;
+import org.dcm4chee.util.TransactionSynchronization;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Roman K
@@ -37,6 +57,9 @@ public class ConfigDBStorageTests extends ConfigEETestsIT {
     @Inject
     DicomConfigManagerProducer dicomConfigManagerProducer;
 
+    @Inject
+    TransactionSynchronization txSync;
+
 
     @Override
     public DicomConfigurationManager getConfig() throws ConfigurationException {
@@ -48,4 +71,224 @@ public class ConfigDBStorageTests extends ConfigEETestsIT {
         // noop this won't work
         //super.testIntegrityCheck();
     }
+
+    @Override
+    public void testPathScopedRefresh() throws Exception {
+        // noop, there is no cache
+    }
+
+    @Override
+    public void testRootRefreshPublishesNewGeneration() throws Exception {
+        // noop, there is no cache
+    }
+
+    /**
+     * Writers restricted to a device only share the DB lock, still each commit must get its own revision
+     */
+    @Test
+    public void testConcurrentPerDeviceWritersGetConsecutiveRevisions() throws Exception {
+        final ConfigRevisionStore revisionStore = (ConfigRevisionStore) dbBlobsStorage;
+
+        dbBlobsStorage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+        long startRevision = revisionStore.getRevision();
+
+        final int writers = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Long> revisions = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            final String deviceName = "revisionDevice" + i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        myConfyEJB.execInTransaction(new Runnable() {
+                            @Override
+                            public void run() {
+                                // what ConfigurationEJB does for a device write with per-device locking enabled
+                                txSync.getSynchronizationRegistry().putResource(ConfigWriteLockScope.class,
+                                        new ArrayList<>(DicomPath.devicePath(deviceName).getPathItems().subList(0, ConfigNodeSplitPolicy.BASE_LEVEL)));
+                                dbBlobsStorage.lock();
+
+                                Map<String, Object> device = new HashMap<>();
+                                device.put("dicomDeviceName", deviceName);
+                                dbBlobsStorage.persistNode(DicomPath.devicePath(deviceName), device, null);
+
+                                revisions.add(revisionStore.incrementRevision());
+                            }
+                        });
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join(30000);
+
+        Assert.assertEquals(Collections.emptyList(), failures);
+
+        Long[] expected = new Long[writers];
+        for (int i = 0; i < writers; i++)
+            expected[i] = startRevision + i + 1;
+
+        List<Long> sorted = new ArrayList<>(revisions);
+        Collections.sort(sorted);
+        Assert.assertEquals(Arrays.asList(expected), sorted);
+        Assert.assertEquals(startRevision + writers, revisionStore.getRevision());
+    }
+
+    /**
+     * Reading a node only loads the rows it consists of, which must still give the same node as the whole tree
+     */
+    @Test
+    public void testNodesLoadedFromTheirRows() throws Exception {
+
+        dbBlobsStorage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+
+        Map<String, Object> aes = new HashMap<>();
+        aes.put("AE1", aeNode("AE1"));
+        aes.put("AE2", aeNode("AE2"));
+        Map<String, Object> device = deviceNode("partialDevice");
+        device.put("dicomDescription", "partial");
+        device.put("dicomNetworkAE", aes);
+        dbBlobsStorage.persistNode(DicomPath.devicePath("partialDevice"), device, null);
+        dbBlobsStorage.persistNode(DicomPath.devicePath("otherDevice"), deviceNode("otherDevice"), null);
+
+        Path devicePath = DicomPath.devicePath("partialDevice");
+        Path aesPath = childPath(devicePath, "dicomNetworkAE");
+        Path descriptionPath = childPath(devicePath, "dicomDescription");
+        Path devicesRootPath = toPath(devicePath.getPathItems().subList(0, 2));
+
+        Map<String, Object> root = dbBlobsStorage.getConfigurationRoot();
+        for (Path path : Arrays.asList(devicePath, aesPath, childPath(aesPath, "AE2"), descriptionPath, devicesRootPath))
+            Assert.assertEquals(Nodes.getNode(root, path.getPathItems()), dbBlobsStorage.getConfigurationNode(path, null));
+
+        Assert.assertEquals(device, dbBlobsStorage.getConfigurationNode(devicePath, null));
+        Assert.assertEquals("partial", dbBlobsStorage.getConfigurationNode(descriptionPath, null));
+        Assert.assertNull(dbBlobsStorage.getConfigurationNode(childPath(aesPath, "AE3"), null));
+
+        Path ae1Path = childPath(aesPath, "AE1");
+        Path otherDevicePath = DicomPath.devicePath("otherDevice");
+        Path missingDevicePath = DicomPath.devicePath("missingDevice");
+        Map<Path, Object> nodes = MultiNodeConfiguration.getConfigurationNodes(dbBlobsStorage,
+                Arrays.asList(devicePath, ae1Path, otherDevicePath, missingDevicePath), null);
+        Assert.assertEquals(device, nodes.get(devicePath));
+        Assert.assertEquals(aeNode("AE1"), nodes.get(ae1Path));
+        Assert.assertEquals(deviceNode("otherDevice"), nodes.get(otherDevicePath));
+        Assert.assertNull(nodes.get(missingDevicePath));
+    }
+
+    /**
+     * Writing the same content again must not touch the row, so it keeps the revision it was last changed in
+     */
+    @Test
+    public void testUnchangedRowIsNotWritten() throws Exception {
+        final SemiSerializedDBConfigStorage dbStorage = (SemiSerializedDBConfigStorage) dbBlobsStorage;
+
+        dbBlobsStorage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+
+        final Map<String, Object> device = deviceNode("unchangedDevice");
+        device.put("dicomDescription", "unchanged");
+
+        final List<Long> revisions = new ArrayList<>();
+        myConfyEJB.execInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                dbStorage.persistNode(DicomPath.devicePath("unchangedDevice"), device, null);
+                revisions.add(dbStorage.incrementRevision());
+            }
+        });
+
+        myConfyEJB.execInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                dbStorage.persistNode(DicomPath.devicePath("unchangedDevice"), device, null);
+                dbStorage.persistNode(DicomPath.devicePath("changedDevice"), deviceNode("changedDevice"), null);
+                revisions.add(dbStorage.incrementRevision());
+            }
+        });
+
+        String unchangedRowPath = Nodes.toSimpleEscapedPath(DicomPath.devicePath("unchangedDevice").getPathItems());
+        String changedRowPath = Nodes.toSimpleEscapedPath(DicomPath.devicePath("changedDevice").getPathItems());
+        Map<String, Map<String, Object>> changedRows = dbStorage.getRowsChangedSince(revisions.get(0));
+
+        Assert.assertFalse(changedRows.containsKey(unchangedRowPath));
+        Assert.assertTrue(changedRows.containsKey(changedRowPath));
+        Assert.assertEquals(device, dbStorage.getConfigurationNode(DicomPath.devicePath("unchangedDevice"), null));
+        Assert.assertEquals(revisions.get(0) + 1, (long) revisions.get(1));
+    }
+
+    /**
+     * Writers restricted to different devices hold the DB lock at the same time, while a global writer waits for them
+     */
+    @Test
+    public void testPerDeviceWritersShareTheLock() throws Exception {
+
+        dbBlobsStorage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+
+        final Semaphore locked = new Semaphore(0);
+        final Semaphore release = new Semaphore(0);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        List<Thread> threads = new ArrayList<>();
+        threads.add(startLockingWriter("sharedLockDevice1", true, locked, release, failures));
+        threads.add(startLockingWriter("sharedLockDevice2", true, locked, release, failures));
+        boolean perDeviceWritersLocked = locked.tryAcquire(2, 5, TimeUnit.SECONDS);
+
+        threads.add(startLockingWriter("globalLockDevice", false, locked, release, failures));
+        boolean globalWriterLockedMeanwhile = locked.tryAcquire(1, 2, TimeUnit.SECONDS);
+
+        release.release(threads.size());
+        boolean globalWriterLocked = globalWriterLockedMeanwhile || locked.tryAcquire(1, 10, TimeUnit.SECONDS);
+
+        for (Thread thread : threads)
+            thread.join(30000);
+
+        Assert.assertEquals(Collections.emptyList(), failures);
+        Assert.assertTrue(perDeviceWritersLocked);
+        Assert.assertFalse(globalWriterLockedMeanwhile);
+        Assert.assertTrue(globalWriterLocked);
+    }
+
+    private Thread startLockingWriter(final String deviceName, final boolean perDevice, final Semaphore locked, final Semaphore release,
+                                      final List<Throwable> failures) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    myConfyEJB.execInTransaction(new Runnable() {
+                        @Override
+                        public void run() {
+                            // what ConfigurationEJB does for a device write with per-device locking enabled
+                            if (perDevice)
+                                txSync.getSynchronizationRegistry().putResource(ConfigWriteLockScope.class,
+                                        new ArrayList<>(DicomPath.devicePath(deviceName).getPathItems().subList(0, ConfigNodeSplitPolicy.BASE_LEVEL)));
+                            dbBlobsStorage.lock();
+                            locked.release();
+
+                            dbBlobsStorage.persistNode(DicomPath.devicePath(deviceName), deviceNode(deviceName), null);
+
+                            try {
+                                release.acquire();
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    });
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
 }
@@ -42,11 +42,15 @@ package org.dcm4chee.conf;
 import org.dcm4che3.conf.api.ConfigurationNotFoundException;
 import org.dcm4che3.conf.api.DicomConfiguration;
 import org.dcm4che3.conf.api.internal.DicomConfigurationManager;
+import org.dcm4che3.conf.core.Nodes;
 import org.dcm4che3.conf.core.api.BatchRunner.Batch;
 import org.dcm4che3.conf.core.api.Configuration;
 import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4che3.conf.core.api.Path;
 import org.dcm4che3.conf.dicom.DicomPath;
 import org.dcm4che3.net.Device;
+import org.dcm4chee.conf.storage.ConfigNodeSplitPolicy;
+import org.dcm4chee.conf.storage.ConfigurationStorage;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
@@ -64,12 +68,18 @@ import org.slf4j.LoggerFactory;
 
 import javax.ejb.EJB;
 import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -82,6 +92,17 @@ public class ConfigEETestsIT {
             .getLogger(ConfigEETestsIT.class);
 
 
+    /**
+     * The AEs of the devices are stored/cached as units of their own, see {@link ConfigNodeSplitPolicy}
+     */
+    static final String SPLIT_AES_RULE = "/dicomConfigurationRoot/dicomDevicesRoot/*/dicomNetworkAE";
+
+    static {
+        // picked up by the storage and the cache when they are created, i.e. on first use within the deployment
+        if (System.getProperty(ConfigNodeSplitPolicy.SPLIT_PROPERTIES_PROPERTY) == null)
+            System.setProperty(ConfigNodeSplitPolicy.SPLIT_PROPERTIES_PROPERTY, SPLIT_AES_RULE);
+    }
+
     @EJB
     MyConfyEJB myConfyEJB;
 
@@ -119,6 +140,18 @@ public class ConfigEETestsIT {
     @Any
     DicomConfigurationManager configurationManager;
 
+    @Inject
+    @Any
+    Instance<Configuration> availableConfigStorage;
+
+    /**
+     * The storage below the cache, to change the configuration behind its back
+     */
+    Configuration getUnderlyingStorage() {
+        String storageType = System.getProperty(Configuration.CONF_STORAGE_SYSTEM_PROP, "json_file");
+        return availableConfigStorage.select(new ConfigurationStorage.ConfigStorageAnno(storageType)).get();
+    }
+
     public DicomConfigurationManager getConfig() throws ConfigurationException {
         // disable upgrade
         System.getProperties().remove("org.dcm4che.conf.upgrade.settingsFile");
@@ -179,6 +212,310 @@ public class ConfigEETestsIT {
     }
 
 
+    /**
+     * A transaction must see its own changes before they are committed, and nothing of them must be left after a rollback
+     */
+    @Test
+    public void testTransactionSeesItsOwnChanges() throws Exception {
+
+        final DicomConfigurationManager config = getConfig();
+        final Configuration storage = config.getConfigurationStorage();
+
+        storage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+        config.persist(new Device("overlayRemoved"));
+
+        final List<String> namesInTx = new ArrayList<>();
+        final AtomicBoolean addedExistsInTx = new AtomicBoolean();
+        final AtomicBoolean removedExistsInTx = new AtomicBoolean(true);
+
+        try {
+            myConfyEJB.execInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        config.persist(new Device("overlayAdded"));
+                        config.removeDevice("overlayRemoved");
+
+                        namesInTx.addAll(Arrays.asList(config.listDeviceNames()));
+                        addedExistsInTx.set(storage.nodeExists(DicomPath.devicePath("overlayAdded")));
+                        removedExistsInTx.set(storage.nodeExists(DicomPath.devicePath("overlayRemoved")));
+                    } catch (ConfigurationException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    throw new RuntimeException("Let's roll (back)!");
+                }
+            });
+        } catch (Exception e) {
+            // it's fine
+        }
+
+        Assert.assertEquals(Collections.singletonList("overlayAdded"), namesInTx);
+        Assert.assertTrue(addedExistsInTx.get());
+        Assert.assertFalse(removedExistsInTx.get());
+
+        Assert.assertEquals(Collections.singletonList("overlayRemoved"), Arrays.asList(config.listDeviceNames()));
+        Assert.assertFalse(storage.nodeExists(DicomPath.devicePath("overlayAdded")));
+        Assert.assertTrue(storage.nodeExists(DicomPath.devicePath("overlayRemoved")));
+    }
+
+    /**
+     * The root must reflect every committed change, as well as the own changes of a transaction
+     */
+    @Test
+    public void testRootFollowsChanges() throws Exception {
+
+        final DicomConfigurationManager config = getConfig();
+        final Configuration storage = config.getConfigurationStorage();
+
+        storage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+
+        config.persist(new Device("rootDevice1"));
+        Assert.assertTrue(Nodes.nodeExists(storage.getConfigurationRoot(), DicomPath.devicePath("rootDevice1").getPathItems()));
+
+        config.persist(new Device("rootDevice2"));
+        Map<String, Object> root = storage.getConfigurationRoot();
+        Assert.assertTrue(Nodes.nodeExists(root, DicomPath.devicePath("rootDevice1").getPathItems()));
+        Assert.assertTrue(Nodes.nodeExists(root, DicomPath.devicePath("rootDevice2").getPathItems()));
+
+        final AtomicBoolean existsInTx = new AtomicBoolean();
+        try {
+            myConfyEJB.execInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        config.persist(new Device("rootDevice3"));
+                    } catch (ConfigurationException e) {
+                        throw new RuntimeException(e);
+                    }
+                    existsInTx.set(Nodes.nodeExists(storage.getConfigurationRoot(), DicomPath.devicePath("rootDevice3").getPathItems()));
+
+                    throw new RuntimeException("Let's roll (back)!");
+                }
+            });
+        } catch (Exception e) {
+            // it's fine
+        }
+
+        Assert.assertTrue(existsInTx.get());
+        Assert.assertFalse(Nodes.nodeExists(storage.getConfigurationRoot(), DicomPath.devicePath("rootDevice3").getPathItems()));
+    }
+
+    /**
+     * Operations on a subtree must not touch the nodes whose names only start with the same characters
+     */
+    @Test
+    public void testSubtreeOperationsDoNotMatchNamePrefixes() throws Exception {
+
+        final DicomConfigurationManager config = getConfig();
+        final Configuration storage = config.getConfigurationStorage();
+
+        storage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+
+        config.persist(new Device("prefix"));
+        config.persist(new Device("prefixLonger"));
+
+        config.removeDevice("prefix");
+        Assert.assertFalse(storage.nodeExists(DicomPath.devicePath("prefix")));
+        Assert.assertTrue(storage.nodeExists(DicomPath.devicePath("prefixLonger")));
+        Assert.assertNotNull(config.findDevice("prefixLonger"));
+
+        // replace all the devices at once
+        Path devicesRootPath = toPath(DicomPath.devicePath("prefixLonger").getPathItems().subList(0, 2));
+        Assert.assertTrue(storage.nodeExists(devicesRootPath));
+
+        Map<String, Object> devices = new HashMap<>();
+        devices.put("prefixOnly", deviceNode("prefixOnly"));
+        storage.persistNode(devicesRootPath, devices, null);
+
+        Assert.assertEquals(Collections.singletonList("prefixOnly"), Arrays.asList(config.listDeviceNames()));
+        Assert.assertFalse(storage.nodeExists(DicomPath.devicePath("prefixLonger")));
+    }
+
+    /**
+     * Persisting and removing a split property, the units split out of it, and the node they are split out of
+     */
+    @Test
+    public void testSplitUnits() throws Exception {
+
+        final DicomConfigurationManager config = getConfig();
+        final Configuration storage = config.getConfigurationStorage();
+
+        storage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+
+        Path devicePath = DicomPath.devicePath("splitDevice");
+        Path aesPath = childPath(devicePath, "dicomNetworkAE");
+
+        Map<String, Object> aes = new HashMap<>();
+        aes.put("AE1", aeNode("AE1"));
+        aes.put("AE2", aeNode("AE2"));
+        Map<String, Object> device = deviceNode("splitDevice");
+        device.put("dicomDescription", "split");
+        device.put("dicomNetworkAE", aes);
+        storage.persistNode(devicePath, device, null);
+
+        Assert.assertTrue(storage.nodeExists(aesPath));
+        Assert.assertTrue(storage.nodeExists(childPath(aesPath, "AE1")));
+        Assert.assertTrue(storage.nodeExists(childPath(aesPath, "AE2")));
+        Assert.assertEquals(aes, ((Map) storage.getConfigurationNode(devicePath, null)).get("dicomNetworkAE"));
+
+        // a single unit
+        storage.persistNode(childPath(aesPath, "AE3"), aeNode("AE3"), null);
+        Assert.assertEquals(aeNode("AE3"), storage.getConfigurationNode(childPath(aesPath, "AE3"), null));
+        Assert.assertTrue(storage.nodeExists(childPath(aesPath, "AE1")));
+
+        // the split property with all its units
+        Map<String, Object> newAes = new HashMap<>();
+        newAes.put("AE4", aeNode("AE4"));
+        storage.persistNode(aesPath, newAes, null);
+        Assert.assertFalse(storage.nodeExists(childPath(aesPath, "AE1")));
+        Assert.assertFalse(storage.nodeExists(childPath(aesPath, "AE3")));
+        Assert.assertEquals(newAes, storage.getConfigurationNode(aesPath, null));
+        Assert.assertEquals("split", storage.getConfigurationNode(childPath(devicePath, "dicomDescription"), null));
+
+        storage.removeNode(childPath(aesPath, "AE4"));
+        Assert.assertFalse(storage.nodeExists(childPath(aesPath, "AE4")));
+        Assert.assertTrue(storage.nodeExists(devicePath));
+
+        storage.persistNode(childPath(aesPath, "AE5"), aeNode("AE5"), null);
+        storage.removeNode(aesPath);
+        Assert.assertFalse(storage.nodeExists(childPath(aesPath, "AE5")));
+        Assert.assertTrue(storage.nodeExists(devicePath));
+
+        storage.persistNode(childPath(aesPath, "AE6"), aeNode("AE6"), null);
+        storage.removeNode(devicePath);
+        Assert.assertFalse(storage.nodeExists(childPath(aesPath, "AE6")));
+        Assert.assertFalse(storage.nodeExists(devicePath));
+    }
+
+    /**
+     * Refreshing a device must only reload that device from the storage
+     */
+    @Test
+    public void testPathScopedRefresh() throws Exception {
+
+        final DicomConfigurationManager config = getConfig();
+        final Configuration storage = config.getConfigurationStorage();
+        final Configuration underlyingStorage = getUnderlyingStorage();
+
+        storage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+
+        for (String deviceName : Arrays.asList("refreshed", "notRefreshed")) {
+            Device device = new Device(deviceName);
+            device.setDescription("old");
+            config.persist(device);
+        }
+
+        myConfyEJB.execInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                for (String deviceName : Arrays.asList("refreshed", "notRefreshed")) {
+                    Map<String, Object> device = (Map<String, Object>) underlyingStorage.getConfigurationNode(DicomPath.devicePath(deviceName), null);
+                    device.put("dicomDescription", "new");
+                    underlyingStorage.persistNode(DicomPath.devicePath(deviceName), device, null);
+                }
+            }
+        });
+
+        myConfyEJB.execInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                storage.refreshNode(DicomPath.devicePath("refreshed"));
+            }
+        });
+
+        Assert.assertEquals("new", config.findDevice("refreshed").getDescription());
+        Assert.assertEquals("old", config.findDevice("notRefreshed").getDescription());
+    }
+
+    /**
+     * Reloading the whole cache must publish the new content at once, readers must never see an empty configuration meanwhile
+     */
+    @Test
+    public void testRootRefreshPublishesNewGeneration() throws Exception {
+
+        final DicomConfigurationManager config = getConfig();
+        final Configuration storage = config.getConfigurationStorage();
+        final Configuration underlyingStorage = getUnderlyingStorage();
+
+        storage.persistNode(DicomPath.CONFIG_ROOT_PATH, new HashMap<String, Object>(), null);
+
+        Device kept = new Device("generationKept");
+        kept.setDescription("old");
+        config.persist(kept);
+        config.persist(new Device("generationRemoved"));
+
+        myConfyEJB.execInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Object> device = (Map<String, Object>) underlyingStorage.getConfigurationNode(DicomPath.devicePath("generationKept"), null);
+                device.put("dicomDescription", "new");
+                underlyingStorage.persistNode(DicomPath.devicePath("generationKept"), device, null);
+
+                underlyingStorage.removeNode(DicomPath.devicePath("generationRemoved"));
+                underlyingStorage.persistNode(DicomPath.devicePath("generationAdded"), deviceNode("generationAdded"), null);
+            }
+        });
+
+        final AtomicBoolean refreshing = new AtomicBoolean(true);
+        final AtomicInteger emptyReads = new AtomicInteger();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (refreshing.get())
+                        if (config.listDeviceNames().length == 0)
+                            emptyReads.incrementAndGet();
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        };
+        reader.start();
+
+        try {
+            myConfyEJB.execInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    storage.refreshNode(Path.ROOT);
+                }
+            });
+        } finally {
+            refreshing.set(false);
+            reader.join(10000);
+        }
+
+        Assert.assertEquals(Collections.emptyList(), failures);
+        Assert.assertEquals(0, emptyReads.get());
+
+        Assert.assertEquals("new", config.findDevice("generationKept").getDescription());
+        Assert.assertNotNull(config.findDevice("generationAdded"));
+        Assert.assertFalse(storage.nodeExists(DicomPath.devicePath("generationRemoved")));
+    }
+
+    static Path childPath(Path path, Object... childPathItems) {
+        List<Object> pathItems = new ArrayList<>(path.getPathItems());
+        pathItems.addAll(Arrays.asList(childPathItems));
+        return toPath(pathItems);
+    }
+
+    static Map<String, Object> aeNode(String aeTitle) {
+        Map<String, Object> ae = new HashMap<>();
+        ae.put("dicomAETitle", aeTitle);
+        return ae;
+    }
+
+    static Path toPath(List<Object> pathItems) {
+        return Path.fromSimpleEscapedPath(Nodes.toSimpleEscapedPath(pathItems));
+    }
+
+    static Map<String, Object> deviceNode(String deviceName) {
+        Map<String, Object> device = new HashMap<>();
+        device.put("dicomDeviceName", deviceName);
+        return device;
+    }
+
     @Test
     public void lockTest() throws Exception {
 
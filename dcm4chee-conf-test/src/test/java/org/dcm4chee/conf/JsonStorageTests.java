@@ -50,4 +50,24 @@ public class JsonStorageTests extends ConfigEETestsIT {
         // noop this won't work
         //super.testIntegrityCheck();
     }
+
+    @Override
+    public void testTransactionSeesItsOwnChanges() throws Exception {
+        // noop, the json storage is not transactional
+    }
+
+    @Override
+    public void testRootFollowsChanges() throws Exception {
+        // noop, the json storage is not transactional
+    }
+
+    @Override
+    public void testPathScopedRefresh() throws Exception {
+        // noop, there is no cache
+    }
+
+    @Override
+    public void testRootRefreshPublishesNewGeneration() throws Exception {
+        // noop, there is no cache
+    }
 }
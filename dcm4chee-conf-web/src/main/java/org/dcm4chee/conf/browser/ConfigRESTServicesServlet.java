@@ -11,6 +11,7 @@ import org.dcm4che3.conf.dicom.DicomPath;
 import org.dcm4che3.net.*;
 import org.dcm4che3.net.hl7.HL7ApplicationExtension;
 import org.dcm4che3.conf.api.upgrade.ConfigurationMetadata;
+import org.dcm4chee.conf.storage.ConfigurationEJB;
 import org.dcm4chee.util.SoftwareVersionProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,7 +22,9 @@ import javax.inject.Inject;
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import java.util.*;
@@ -216,8 +219,63 @@ public class ConfigRESTServicesServlet {
     @GET
     @Path("/device/{deviceName}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Map<String, Object> getDeviceConfig(@PathParam(value = "deviceName") String deviceName) throws ConfigurationException {
-        return (Map<String, Object>) configurationManager.getConfigurationStorage().getConfigurationNode(DicomPath.devicePath(deviceName), Device.class);
+    public Response getDeviceConfig(@Context Request request, @PathParam(value = "deviceName") String deviceName) throws ConfigurationException {
+        org.dcm4che3.conf.core.api.Path devicePath = DicomPath.devicePath(deviceName);
+
+        // calculated before reading the node, so that the tag is never newer than the returned content
+        EntityTag entityTag = getEntityTag(devicePath);
+        if (entityTag != null) {
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+            if (notModified != null)
+                return notModified.build();
+        }
+
+        Map<String, Object> config = (Map<String, Object>) configurationManager.getConfigurationStorage().getConfigurationNode(devicePath, Device.class);
+        if (config == null)
+            return Response.noContent().build();
+
+        return Response.ok(config).tag(entityTag).build();
+    }
+
+    /**
+     * @return a tag that changes whenever the node changes, or null if not supported by the storage
+     */
+    private EntityTag getEntityTag(org.dcm4che3.conf.core.api.Path path) {
+        Configuration storage = configurationManager.getConfigurationStorage();
+        if (!(storage instanceof ConfigurationEJB))
+            return null;
+
+        String hash = ((ConfigurationEJB) storage).getNodeHash(path);
+        return hash == null ? null : new EntityTag(hash);
+    }
+
+    /**
+     * The revision is incremented with every committed modification, so clients can cheaply find out whether the configuration changed
+     */
+    @GET
+    @Path("/revision")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getRevision() {
+        Configuration storage = configurationManager.getConfigurationStorage();
+        if (!(storage instanceof ConfigurationEJB))
+            return Response.noContent().build();
+
+        return Response.ok(Collections.singletonMap("revision", ((ConfigurationEJB) storage).getRevision())).build();
+    }
+
+    /**
+     * Latency stats of the layers of the configuration decorator chain, only available if enabled (see {@link ConfigurationEJB#METRICS_PROP})
+     */
+    @GET
+    @Path("/metrics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getMetrics() {
+        Configuration storage = configurationManager.getConfigurationStorage();
+        Map<String, Map<String, Double>> metrics = storage instanceof ConfigurationEJB ? ((ConfigurationEJB) storage).getMetrics() : null;
+        if (metrics == null)
+            return Response.noContent().build();
+
+        return Response.ok(metrics).build();
     }
 
     @GET
@@ -40,6 +40,7 @@
 
 package org.dcm4chee.cache;
 
+import java.util.Collection;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -57,4 +58,34 @@ public interface Cache<K, V> extends ConcurrentMap<K, V> {
     org.infinispan.Cache getInfinispanCache();
 
     boolean lock(K... keys);
+
+    /**
+     * Registers a listener that is notified about every created, modified or removed entry once the change is applied,
+     * no matter whether it was made on this node or on another cluster node.
+     * For changes made by a transaction, the notification happens after the transaction has been successfully committed.
+     */
+    void addEntryListener(EntryListener<K> listener);
+
+    /**
+     * Infinispan (at least 5.x) does not provide read atomic isolation, i.e. a reader may see only some of the changes of another
+     * transaction while they are being applied. Readers of multiple entries can use the stamp to detect that:
+     * if the stamp is still the same after reading, and none of the read entries is changed by a transaction that is being applied
+     * (see {@link #isBeingApplied(Collection)}), the reader has seen either all or none of the changes of every transaction.
+     *
+     * @return a stamp that changes whenever the changes of a transaction were applied to this node
+     */
+    long getCommitStamp();
+
+    /**
+     * @return true if one of the keys is changed by a transaction whose changes are being applied to this node
+     */
+    boolean isBeingApplied(Collection<K> keys);
+
+    interface EntryListener<K> {
+
+        /**
+         * @param removed true if the entry was removed, false if it was created or modified
+         */
+        void entryChanged(K key, boolean removed);
+    }
 }
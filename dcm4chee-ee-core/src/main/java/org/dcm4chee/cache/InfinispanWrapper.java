@@ -40,10 +40,29 @@
 
 package org.dcm4chee.cache;
 
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.annotation.TransactionCompleted;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.Event;
+import org.infinispan.notifications.cachelistener.event.TransactionCompletedEvent;
+import org.infinispan.transaction.xa.GlobalTransaction;
+
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
 
 /**
  * @author Roman K
@@ -52,6 +71,8 @@ public class InfinispanWrapper<K,V> implements Cache<K,V> {
 
     private org.infinispan.Cache<K,V> delegate;
 
+    private volatile ChangeTracker<K> changeTracker;
+
 
     @Override
     public org.infinispan.Cache getInfinispanCache() {
@@ -67,6 +88,39 @@ public class InfinispanWrapper<K,V> implements Cache<K,V> {
         return delegate.getAdvancedCache().lock(keys);
     }
 
+    @Override
+    public void addEntryListener(EntryListener<K> listener) {
+        getChangeTracker().addEntryListener(listener);
+    }
+
+    /**
+     * The tracking starts with the first call (or with the first registered entry listener)
+     */
+    @Override
+    public long getCommitStamp() {
+        return getChangeTracker().getStamp();
+    }
+
+    @Override
+    public boolean isBeingApplied(Collection<K> keys) {
+        return getChangeTracker().isBeingApplied(keys);
+    }
+
+    private ChangeTracker<K> getChangeTracker() {
+        ChangeTracker<K> tracker = changeTracker;
+        if (tracker == null) {
+            synchronized (this) {
+                if (changeTracker == null) {
+                    ChangeTracker<K> newTracker = new ChangeTracker<>(delegate);
+                    delegate.addListener(newTracker);
+                    changeTracker = newTracker;
+                }
+                tracker = changeTracker;
+            }
+        }
+        return tracker;
+    }
+
     @Override
     public V putIfAbsent(K key, V value) {
         return delegate.putIfAbsent(key, value);
@@ -156,4 +210,166 @@ public class InfinispanWrapper<K,V> implements Cache<K,V> {
     public int hashCode() {
         return delegate.hashCode();
     }
+
+    /**
+     * Infinispan (5.x) fires entry events of a transaction before its changes are visible: at the time of the operation for
+     * a local transaction, and on prepare for a remote one. Such keys are therefore collected per transaction and only passed on
+     * to the entry listeners once the transaction completes successfully.
+     * <p>
+     * It also keeps track of the transactions whose changes are being applied to this node (see {@link #isBeingApplied(Collection)}).
+     * A remote transaction is in flight from its first entry event until it completes, a local one from the start of its completion,
+     * as its entry events are fired long before. Either way, all the keys of a transaction are known before its changes become visible. The stamp only changes after the entry listeners were notified, so that the readers
+     * never combine the entries they invalidated with the ones they did not invalidate yet.
+     */
+    @Listener
+    public static class ChangeTracker<K> {
+
+        /**
+         * Transactions that did not complete within this time after they started to be applied are not waited for anymore,
+         * e.g. if a completion event got lost
+         */
+        private static final long STALE_AFTER_MS = 10000;
+
+        /**
+         * Transactions without any event for this time (longer than any transaction timeout) are evicted, e.g. if a completion
+         * event got lost. Their changes are then passed on to the entry listeners as they are in the cache at that time.
+         */
+        private static final long EVICT_AFTER_MS = 3600000;
+
+        private final org.infinispan.Cache<K, ?> cache;
+
+        private final List<EntryListener<K>> listeners = new CopyOnWriteArrayList<>();
+
+        private final AtomicLong stamp = new AtomicLong();
+
+        /**
+         * All the state of a transaction is kept in one entry, so that it is evicted at once
+         */
+        private final ConcurrentMap<GlobalTransaction, OngoingTransaction<K>> transactions = new ConcurrentHashMap<>();
+
+        ChangeTracker(org.infinispan.Cache<K, ?> cache) {
+            this.cache = cache;
+        }
+
+        void addEntryListener(EntryListener<K> listener) {
+            listeners.add(listener);
+        }
+
+        long getStamp() {
+            return stamp.get();
+        }
+
+        boolean isBeingApplied(Collection<K> keys) {
+            if (transactions.isEmpty() || keys.isEmpty())
+                return false;
+
+            long now = System.currentTimeMillis();
+            for (OngoingTransaction<K> tx : transactions.values()) {
+                long applyingSince = tx.applyingSince;
+                if (applyingSince != 0 && now - applyingSince <= STALE_AFTER_MS)
+                    for (K key : tx.changes.keySet())
+                        if (keys.contains(key))
+                            return true;
+            }
+            return false;
+        }
+
+        private void evictStale() {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<GlobalTransaction, OngoingTransaction<K>> entry : transactions.entrySet())
+                if (now - entry.getValue().lastEvent > EVICT_AFTER_MS && transactions.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().changes.keySet().forEach((key) -> notifyListeners(key, !cache.containsKey(key)));
+                    stamp.incrementAndGet();
+                }
+        }
+
+        @CacheEntryCreated
+        @CacheEntryModified
+        @CacheEntryRemoved
+        public void onEntryEvent(CacheEntryEvent<K, ?> event) {
+            boolean removed = event.getType() == Event.Type.CACHE_ENTRY_REMOVED;
+
+            GlobalTransaction tx = event.getGlobalTransaction();
+            if (tx == null) {
+                // a single entry is always applied atomically
+                if (!event.isPre()) {
+                    notifyListeners(event.getKey(), removed);
+                    stamp.incrementAndGet();
+                }
+                return;
+            }
+
+            OngoingTransaction<K> ongoing = transactions.computeIfAbsent(tx, (t) -> new OngoingTransaction<>());
+            ongoing.lastEvent = System.currentTimeMillis();
+
+            if (!event.isOriginLocal()) {
+                if (ongoing.applyingSince == 0)
+                    ongoing.applyingSince = ongoing.lastEvent;
+            } else if (ongoing.watched.compareAndSet(false, true)) {
+                watchLocalTransaction(event, tx, ongoing);
+            }
+
+            if (event.isPre())
+                return;
+
+            // the latest change of a key within the transaction wins, readers look up the keys concurrently
+            ongoing.changes.put(event.getKey(), removed);
+        }
+
+        private void watchLocalTransaction(CacheEntryEvent<K, ?> event, GlobalTransaction tx, OngoingTransaction<K> ongoing) {
+            try {
+                Transaction transaction = event.getCache().getAdvancedCache().getTransactionManager().getTransaction();
+                transaction.registerSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                        ongoing.lastEvent = ongoing.applyingSince = System.currentTimeMillis();
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        // a committed one is released once its changes are applied, see onTransactionCompleted
+                        if (status != Status.STATUS_COMMITTED && transactions.remove(tx) != null)
+                            stamp.incrementAndGet();
+                    }
+                });
+            } catch (Exception e) {
+                // cannot tell when it starts completing, the readers will only notice the change of the stamp afterwards
+            }
+        }
+
+        @TransactionCompleted
+        public void onTransactionCompleted(TransactionCompletedEvent<K, ?> event) {
+            GlobalTransaction tx = event.getGlobalTransaction();
+
+            OngoingTransaction<K> ongoing = transactions.remove(tx);
+            if (ongoing != null && event.isTransactionSuccessful())
+                ongoing.changes.forEach(this::notifyListeners);
+
+            stamp.incrementAndGet();
+
+            evictStale();
+        }
+
+        private void notifyListeners(K key, boolean removed) {
+            for (EntryListener<K> listener : listeners)
+                listener.entryChanged(key, removed);
+        }
+
+        private static class OngoingTransaction<K> {
+
+            /**
+             * Changed keys, the latest change of a key wins
+             */
+            private final Map<K, Boolean> changes = new ConcurrentHashMap<>();
+
+            /**
+             * Time the changes started to be applied to this node, 0 if not yet
+             */
+            private volatile long applyingSince;
+
+            private volatile long lastEvent;
+
+            private final AtomicBoolean watched = new AtomicBoolean();
+        }
+    }
 }